@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -78,39 +79,18 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageData(pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageData(pageBuf, pageOffset(id.getPageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,17 +107,34 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Fill pageBuf with the bytes stored at the given offset of the file
+	 * 
+	 * @param pageBuf - the buffer to fill
+	 * @param offset - the file offset of the first byte
+	 * @throws IllegalArgumentException if the file does not contain a full page at offset
+	 */
+	private void readPageData(byte[] pageBuf, long offset) throws IOException {
+		int retval = Database.getFileChannelPool().read(f, ByteBuffer.wrap(pageBuf), offset);
+		if (retval == -1) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < pageBuf.length) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageBuf.length + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * Returns the file offset of the given (non root pointer) page
+	 */
+	private long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (pageNo-1) * (long) BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,15 +145,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			Database.getFileChannelPool().writeFully(f, ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			Database.getFileChannelPool().writeFully(f, ByteBuffer.wrap(data), pageOffset(id.getPageNumber()));
 		}
 	}
 	
@@ -461,6 +454,26 @@ public class BTreeFile implements DbFile {
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
+
+	/**
+	 * Insert tuples into this BTreeFile one at a time, as each insert may
+	 * split the pages the tuples that follow belong on.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, Collection<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+		for(Tuple t : tuples) {
+			for(Page p : insertTuple(tid, t)) {
+				dirtypages.put(p.getId(), p);
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -833,6 +846,26 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Delete tuples from this BTreeFile one at a time, as deletes may merge or
+	 * redistribute the pages of the tuples that follow.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #deleteTuple(TransactionId, Tuple)
+	 */
+	public ArrayList<Page> deleteTuples(TransactionId tid, Collection<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+		for(Tuple t : tuples) {
+			for(Page p : deleteTuple(tid, t)) {
+				dirtypages.put(p.getId(), p);
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -848,13 +881,11 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				ByteBuffer buf = ByteBuffer.allocate(emptyRootPtrData.length + emptyLeafData.length);
+				buf.put(emptyRootPtrData).put(emptyLeafData).flip();
+				Database.getFileChannelPool().append(f, buf);
 			}
 		}
 
@@ -910,11 +941,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				Database.getFileChannelPool().append(f, ByteBuffer.wrap(emptyData));
 				emptyPageNo = numPages();
 			}
 		}
@@ -945,10 +973,8 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getFileChannelPool().writeFully(f, ByteBuffer.wrap(BTreePage.createEmptyPageData()),
+				pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1078,6 +1104,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferPool.PagePin pin = null; // the pin on curp
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1099,10 +1126,29 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		BTreeLeafPage leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		pinLeaf(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Unpin the current page and pin the specified leaf page as the new
+	 * current page, so that the page being read cannot be evicted.
+	 */
+	private void pinLeaf(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpinLeaf();
+		pin = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pin.getPage();
+	}
+
+	private void unpinLeaf() {
+		if (pin != null) {
+			pin.unpin();
+			pin = null;
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1117,11 +1163,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				unpinLeaf();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pinLeaf(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1147,7 +1192,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		unpinLeaf();
 	}
 }
 
@@ -1159,6 +1204,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferPool.PagePin pin = null; // the pin on curp
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1184,16 +1230,36 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		pinLeaf(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Unpin the current page and pin the specified leaf page as the new
+	 * current page, so that the page being read cannot be evicted.
+	 */
+	private void pinLeaf(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpinLeaf();
+		pin = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pin.getPage();
+	}
+
+	private void unpinLeaf() {
+		if (pin != null) {
+			pin.unpin();
+			pin = null;
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1213,12 +1279,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					it = null;
+					unpinLeaf();
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
 						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					it = null;
+					unpinLeaf();
 					return null;
 				}
 			}
@@ -1226,11 +1296,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				it = null;
+				unpinLeaf();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pinLeaf(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +1323,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpinLeaf();
 	}
 }
@@ -2,9 +2,21 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,6 +26,21 @@ import java.util.Map;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in a concurrent page table, so a hit takes no lock that
+ * is shared by the whole pool: it only waits on the latch of its own frame if
+ * that frame is still being loaded or evicted. Hits are reported to the
+ * replacement policy through a lock-free buffer that is drained under the
+ * eviction lock. Eviction picks its victim under that lock, but writes the
+ * victim back after releasing it.
+ * <p>
+ * Every page write is preceded by an update record for the page in the log
+ * (write-ahead logging). By default the pool runs FORCE / NO STEAL, as the
+ * labs expect: commit writes the pages of the transaction and pages dirtied
+ * by running transactions are never evicted. {@link #setForce} switches to
+ * NO FORCE, where commit only forces update records to the log and the pages
+ * are written back later; {@link #setSteal} lets eviction write back pages of
+ * running transactions, which abort and recovery then undo from the log.
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,33 +55,120 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private final Map<PageId, Frame> syncLRUMap;
+    // cached pages, including pages that are being loaded or evicted
+    private final ConcurrentHashMap<PageId, Frame> pageTable;
+    // frames that are cached or being loaded, i.e. not chosen for eviction
+    private final AtomicInteger residentPages = new AtomicInteger();
+
+    // decides which page to evict, guarded by evictionLock
+    private final ReplacementPolicy policy;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // reserved frames that are not handed to the policy yet; decremented under evictionLock
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    // signalled when such a frame is settled, so evictors can consider it
+    private final Condition settledCondition = evictionLock.newCondition();
+    // hits not reported to the policy yet
+    private final ConcurrentLinkedQueue<PageId> pendingAccesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numPendingAccesses = new AtomicInteger();
+
+    /** Number of buffered hits after which a hit tries to drain the buffer. */
+    private static final int ACCESS_DRAIN_THRESHOLD = 64;
+
+    // statistics to compare replacement policies on a workload
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong trickled = new AtomicLong();
+    private final AtomicLong cleaned = new AtomicLong();
+    private final AtomicLong evictionWrites = new AtomicLong();
+    private final AtomicLong evictionWritesAvoided = new AtomicLong();
+    private final AtomicLong backgroundWriteFailures = new AtomicLong();
+    private volatile IOException lastBackgroundWriteFailure;
+
+    // background writers, see startTrickleWriter and startPageCleaner
+    private final Object writerLock = new Object();
+    private BackgroundWriter trickleWriter; // protected by writerLock
+    private BackgroundWriter pageCleaner; // protected by writerLock
+
+    private final LockManager lockManager = new LockManager();
+
+    // pins not released yet, by the transaction that took them
+    private final ConcurrentHashMap<TransactionId, Set<PagePin>> pins = new ConcurrentHashMap<>();
+
+    // buffer management policy, see setForce and setSteal
+    private volatile boolean force = true;
+    private volatile boolean steal = false;
+
+    /** Number of threads reading pages ahead of sequential scans. */
+    private static final int READ_AHEAD_THREADS = 2;
+
+    // shared by all buffer pools, its threads are daemons so they never keep the JVM alive
+    private static final ExecutorService readAheadExecutor =
+            Executors.newFixedThreadPool(READ_AHEAD_THREADS, r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
 
 
     private int MAX_NO_PAGES;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LRUReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * pages chosen by the specified replacement policy when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy; must not be shared with another pool
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
         MAX_NO_PAGES = numPages;
-        syncLRUMap = Collections.synchronizedMap(new LinkedHashMap<PageId, Frame>((int) Math.ceil((MAX_NO_PAGES / 0.75)) + 1, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<PageId, Frame> eldest) {
-                boolean del = this.size() > MAX_NO_PAGES;
-                if (del) {
-                    Page p = eldest.getValue().page;
-                    flushPage(p);
-                }
-                return del;
-            }
-        });
+        pageTable = new ConcurrentHashMap<>((int) Math.ceil((MAX_NO_PAGES / 0.75)) + 1);
+        this.policy = policy;
+    }
+
+    /** @return the lock manager that grants the page locks of this buffer pool. */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Choose between FORCE (the default), where commit writes all pages of
+     * the transaction to disk, and NO FORCE, where commit only forces their
+     * update records to the log and the pages stay dirty in the pool.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    public boolean isForce() {
+        return force;
     }
 
-    private int gretterThanSize() {
+    /**
+     * Choose between NO STEAL (the default), where pages dirtied by running
+     * transactions are never evicted, and STEAL, where they may be evicted
+     * once their update record is in the log.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
 
+    /** @return the maximum number of pages this buffer pool caches. */
+    public int getCapacity() {
         return this.MAX_NO_PAGES;
     }
 
@@ -76,19 +190,329 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm) // unimplemented concurrency control
         throws TransactionAbortedException, DbException {
         // some code goes here
-//        return null;
-        Frame frame;
-        if ((frame = syncLRUMap.get(pid)) == null) {// contained
-//            if(syncLRUMap.size() == MAX_NO_PAGES){
-//                evictPage();
-//            }
-            Page pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            frame = new Frame(pg);
-            syncLRUMap.put(pid, frame);
+        return fetchPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, and pin it: the page
+     * is not evicted until the returned pin is released with
+     * {@link PagePin#unpin}, or the transaction completes. Iterators pin the
+     * page they are reading from, so that the page object they hold stays
+     * the cached version of that page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the pin, which holds the page
+     * @throws DbException if the page is not cached and every page in the
+     *         pool is pinned
+     */
+    public PagePin pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        PagePin pin = new PagePin(tid);
+        fetchPage(tid, pid, perm, pin);
+        pins.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pin);
+        return pin;
+    }
+
+    /**
+     * A pin on the frame of a cached page, taken by {@link #pinPage} on
+     * behalf of a transaction. It releases exactly the frame it pinned, so a
+     * pin can never release another pin of the same page.
+     */
+    public final class PagePin {
+        private final TransactionId tid;
+        private Frame frame;
+        private Page page;
+        private boolean released = false; // guarded by this
+
+        private PagePin(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        private void pinned(Frame frame, Page page) {
+            this.frame = frame;
+            this.page = page;
+        }
+
+        /** @return the pinned page */
+        public Page getPage() {
+            return page;
+        }
+
+        /** Release the pin. Does nothing if it was released already. */
+        public void unpin() {
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
+            }
+            frame.unpin();
+            Set<PagePin> held = pins.get(tid);
+            if (held != null)
+                held.remove(this);
+        }
+    }
+
+    /** Release the pins the specified transaction still holds, e.g. of iterators that were never closed. */
+    private void releasePins(TransactionId tid) {
+        Set<PagePin> held = pins.remove(tid);
+        if (held != null) {
+            for (PagePin pin : held)
+                pin.unpin();
+        }
+    }
+
+    /** @return the number of pins held on the specified page, 0 if it is not cached */
+    public int getPinCount(PageId pid) {
+        Frame frame = pageTable.get(pid);
+        return frame == null ? 0 : frame.pinCount;
+    }
+
+    /** @param pin if not null, pin the frame of the page and note it in pin */
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, PagePin pin)
+        throws TransactionAbortedException, DbException {
+        lockManager.acquire(tid, pid, perm);
+        while (true) {
+            Frame frame = pageTable.get(pid);
+            if (frame != null) {
+                // a writer takes the latch, so it does not change the page while the
+                // background writers or an eviction write it back
+                Page pg = pin != null ? frame.pin()
+                    : perm == Permissions.READ_WRITE ? frame.awaitPageLatched() : frame.awaitPage();
+                if (pg != null) {
+                    hits.incrementAndGet();
+                    recordAccess(pid);
+                    if (pin != null)
+                        pin.pinned(frame, pg);
+                    return pg;
+                }
+                // evicted or discarded while we waited, look it up again
+                continue;
+            }
+            frame = insertFrame(pid);
+            if (frame == null)
+                continue; // another thread got there first
+            if (pin != null)
+                frame.pinCount = 1; // not visible to evictors until it is loaded
+            misses.incrementAndGet();
+            Page pg = loadPage(pid, frame);
+            if (pin != null)
+                pin.pinned(frame, pg);
             return pg;
         }
+    }
+
+    /**
+     * Put a new, loading frame for the specified page into the page table,
+     * evicting a page first if the pool is full. The caller must load the
+     * frame and then call {@link #frameSettled}.
+     *
+     * @return the new frame, or null if the page is already in the table
+     */
+    private Frame insertFrame(PageId pid) throws DbException {
+        reserveFrame();
+        Frame frame = new Frame(pid, lockManager);
+        if (pageTable.putIfAbsent(pid, frame) != null) {
+            cancelReservation();
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Make sure there is room for one more frame, evicting a page if the pool
+     * is full. The caller must either insert a frame and settle it with
+     * {@link #frameSettled}, or call {@link #cancelReservation}.
+     */
+    private void reserveFrame() throws DbException {
+        if (residentPages.incrementAndGet() > MAX_NO_PAGES) {
+            try {
+                evictPage();
+            } catch (DbException e) {
+                residentPages.decrementAndGet();
+                throw e;
+            }
+        }
+        pendingFrames.incrementAndGet();
+    }
+
+    private void cancelReservation() {
+        residentPages.decrementAndGet();
+        evictionLock.lock();
+        try {
+            pendingFrames.decrementAndGet();
+            settledCondition.signalAll();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Read the page into a frame that this thread just put into the page
+     * table, and wake up the threads waiting for it.
+     */
+    private Page loadPage(PageId pid, Frame frame) {
+        Page pg;
+        try {
+            pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            if (pageTable.remove(pid, frame))
+                residentPages.decrementAndGet();
+            frame.remove();
+            frameSettled(pid, frame);
+            throw e;
+        }
+        frame.loaded(pg);
+        frameSettled(pid, frame);
+        return pg;
+    }
+
+    /**
+     * Hand a frame that is no longer loading to the replacement policy, unless
+     * it was discarded or failed to load, and wake up waiting evictors.
+     */
+    private void frameSettled(PageId pid, Frame frame) {
+        evictionLock.lock();
+        try {
+            if (frame.state == Frame.READY && pageTable.get(pid) == frame)
+                policy.pageAdded(pid);
+            pendingFrames.decrementAndGet();
+            settledCondition.signalAll();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Report a hit to the replacement policy. Hits are buffered and applied
+     * in batches by whichever thread gets the eviction lock next, so a hit
+     * never waits for that lock.
+     */
+    private void recordAccess(PageId pid) {
+        pendingAccesses.add(pid);
+        if (numPendingAccesses.incrementAndGet() >= ACCESS_DRAIN_THRESHOLD
+                && evictionLock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /** Apply the buffered hits to the policy. Caller must hold evictionLock. */
+    private void drainAccesses() {
+        PageId pid;
+        while ((pid = pendingAccesses.poll()) != null) {
+            numPendingAccesses.decrementAndGet();
+            policy.pageAccessed(pid);
+        }
+    }
+
+    /**
+     * Replace the cached version of a page with the specified page object,
+     * or cache it if it is not in the pool.
+     */
+    private void updatePage(Page pg) throws DbException {
+        PageId pid = pg.getId();
+        while (true) {
+            Frame frame = pageTable.get(pid);
+            if (frame == null) {
+                frame = insertFrame(pid);
+                if (frame == null)
+                    continue;
+                frame.loaded(pg);
+                frameSettled(pid, frame);
+                return;
+            }
+            if (frame.replace(pg)) {
+                recordAccess(pid);
+                return;
+            }
+        }
+    }
 
-        return syncLRUMap.get(pid).getPage(tid, perm);
+    /** @return the number of page requests served from the pool. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of page requests that had to read the page from disk. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of pages evicted to make room for other pages. */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** @return the fraction of page requests served from the pool, 0 if there were none. */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Reset the hit, miss and eviction counters. */
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        evictionWrites.set(0);
+        evictionWritesAvoided.set(0);
+        backgroundWriteFailures.set(0);
+    }
+
+    /**
+     * Asynchronously read the specified page into the buffer pool, unless it
+     * is already cached or the pool is under eviction pressure. No lock is
+     * acquired: the page is only staged so that a later {@link #getPage} for
+     * it is a hit.
+     *
+     * @param pid the ID of the page to read ahead
+     * @return a future that completes once the page is cached (or skipped)
+     */
+    public Future<?> prefetchPage(PageId pid) {
+        return readAheadExecutor.submit(() -> {
+            if (isCached(pid) || underEvictionPressure())
+                return null;
+            Frame frame;
+            try {
+                frame = insertFrame(pid);
+            } catch (DbException e) {
+                return null; // nothing evictable, not worth waiting for
+            }
+            // a concurrent getPage may have loaded (and even dirtied) the page meanwhile
+            if (frame != null)
+                loadPage(pid, frame);
+            return null;
+        });
+    }
+
+    /** Return true if the specified page is currently cached (or being read) in the buffer pool */
+    public boolean isCached(PageId pid) {
+        return pageTable.containsKey(pid);
+    }
+
+    /**
+     * Returns true when the pool is full and at least half of its pages are
+     * dirty, i.e. when making room for pages that nobody has asked for yet
+     * would mostly evict (and write back) pages that are still being updated.
+     * Read-ahead backs off while this holds. Runs in time linear in the pool
+     * size, without locking.
+     */
+    public boolean underEvictionPressure() {
+        if (residentPages.get() < MAX_NO_PAGES)
+            return false;
+        int dirty = 0;
+        for (Frame f : pageTable.values()) {
+            Page pg = f.page;
+            if (pg != null && pg.isDirty() != null)
+                dirty++;
+        }
+        return dirty * 2 >= MAX_NO_PAGES;
     }
 
     public static int getPageSize() {
@@ -126,7 +550,34 @@ public class BufferPool {
         // not necessary for lab1
         ArrayList<Page> pgs = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for (Page pg : pgs)
-            syncLRUMap.put(pg.getId(), new Frame(pg));
+            updatePage(pg);
+    }
+
+    /**
+     * Add the specified tuples to the specified table on behalf of
+     * transaction tid, as insertTuple would one at a time. The file may
+     * write pages for a large batch itself, bypassing the pool, and only
+     * hand back the pages that it changed in the pool.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, Collection<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> pgs = Database.getCatalog().getDatabaseFile(tableId).insertTuples(tid, tuples);
+        for (Page pg : pgs)
+            updatePage(pg);
+    }
+
+    /**
+     * Acquire a lock on a page without reading it, for a page that a file
+     * writes itself rather than through the pool.
+     */
+    void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquire(tid, pid, perm);
     }
 
     /**
@@ -141,6 +592,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -151,13 +603,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -171,6 +624,96 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        releasePins(tid);
+        // a transaction only dirties pages it holds an exclusive lock on
+        for (PageId pid : lockManager.getExclusivelyLockedPages(tid)) {
+            Frame frame = pageTable.get(pid);
+            Page pg = frame == null ? null : frame.page;
+            if (pg == null)
+                continue;
+            boolean dirty = tid.equals(pg.isDirty());
+            if (commit) {
+                if (force)
+                    frame.flush(this);
+                else if (dirty)
+                    frame.loggedBy = tid; // its commit record is in the log
+                // even pages flushed before commit start a new before image
+                pg.setBeforeImage();
+            } else if (!dirty) {
+                continue;
+            } else if (force) {
+                // pages that were stolen are rolled back by the log, all
+                // others are on disk as they were before the transaction
+                discardPage(pid);
+            } else {
+                // the committed version may only be in the pool and the log
+                Page before = pg.getBeforeImage();
+                before.markDirty(true, tid);
+                frame.loggedBy = tid;
+                frame.replace(before);
+            }
+        }
+        FreeSpaceMap.transactionComplete(tid, commit);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Make the changes of the specified transaction durable, before its
+     * commit record is written. Under FORCE this writes its dirty pages to
+     * disk, under NO FORCE it only writes update records for them to the
+     * log, which are forced along with the commit record.
+     *
+     * @param tid the ID of the committing transaction
+     */
+    public void prepareCommit(TransactionId tid) throws IOException {
+        if (force) {
+            flushPages(tid);
+            return;
+        }
+        logPages(tid);
+    }
+
+    /**
+     * Write update records for the cached pages the specified transaction
+     * dirtied, without forcing the log.
+     */
+    void logPages(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (PageId pid : lockManager.getExclusivelyLockedPages(tid)) {
+            Frame frame = pageTable.get(pid);
+            Page pg = frame == null ? null : frame.page;
+            if (pg != null && tid.equals(pg.isDirty()))
+                logPage(log, tid, frame, pg);
+        }
+    }
+
+    /**
+     * @return the dirty-page table: the cached pages with changes that are
+     *         in the log but not on disk, each with the LSN of the first
+     *         record describing such a change (its recLSN). Dirty pages
+     *         whose changes were not logged yet are left out, their records
+     *         will follow.
+     */
+    Map<PageId, Long> dirtyPages() {
+        HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+        for (Map.Entry<PageId, Frame> e : pageTable.entrySet()) {
+            long recLsn = e.getValue().recLsn;
+            if (recLsn != Frame.NO_LSN)
+                dirty.put(e.getKey(), recLsn);
+        }
+        return dirty;
+    }
+
+    /**
+     * @return the cached version of the specified page, or null if it is
+     *         not cached. Does not wait for a page being evicted, so the
+     *         log manager can call it while holding its monitor. Takes no
+     *         lock, so inserts use it to skip a page without room before
+     *         locking any; the page may change right after.
+     */
+    Page peekPage(PageId pid) {
+        Frame frame = pageTable.get(pid);
+        return frame == null ? null : frame.page;
     }
 
     /**
@@ -192,7 +735,31 @@ public class BufferPool {
         // not necessary for lab1
         ArrayList<Page> pgs = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
         for (Page pg : pgs)
-            syncLRUMap.put(pg.getId(), new Frame(pg));
+            updatePage(pg);
+    }
+
+    /**
+     * Remove the specified tuples from the buffer pool, as deleteTuple would
+     * one at a time. The tuples are passed to the file of their table
+     * together, so that it can update each page once.
+     *
+     * @param tid the transaction deleting the tuples.
+     * @param tuples the tuples to delete
+     * @see DbFile#deleteTuples
+     */
+    public void deleteTuples(TransactionId tid, Collection<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<Integer, ArrayList<Tuple>> byTable = new LinkedHashMap<Integer, ArrayList<Tuple>>();
+        for (Tuple t : tuples) {
+            if (t.getRecordId() == null)
+                throw new DbException("tuple has no record id");
+            byTable.computeIfAbsent(t.getRecordId().getPageId().getTableId(), k -> new ArrayList<Tuple>()).add(t);
+        }
+        for (Map.Entry<Integer, ArrayList<Tuple>> e : byTable.entrySet()) {
+            ArrayList<Page> pgs = Database.getCatalog().getDatabaseFile(e.getKey()).deleteTuples(tid, e.getValue());
+            for (Page pg : pgs)
+                updatePage(pg);
+        }
     }
 
     /**
@@ -200,13 +767,11 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        syncLRUMap.values().forEach(
-            x -> {
-                flushPage(x.page);}
-        );
+        for (Frame frame : pageTable.values())
+            frame.flush(this);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -217,60 +782,532 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        syncLRUMap.remove(pid); // not need flushPage
+        Frame frame;
+        evictionLock.lock();
+        try {
+            frame = pageTable.remove(pid); // not need flushPage
+            if (frame != null)
+                policy.pageRemoved(pid);
+        } finally {
+            evictionLock.unlock();
+        }
+        if (frame != null && frame.remove())
+            residentPages.decrementAndGet();
     }
 
     /**
-     * Flushes a certain page to disk if page.isDirty() != null
-     * @param pid an ID indicating the page to flush
+     * Flushes a certain page to disk if page.isDirty() != null, after
+     * writing an update record for it to the log unless its changes are
+     * logged already. The log is only forced if it is not on disk up to the
+     * page LSN yet. Logs without holding the frame latch, since the log
+     * manager calls back into the pool while holding its own monitor.
      */
-    private synchronized void flushPage(Page pg)  {
+    private void flushPage(Frame frame) throws IOException {
         // some code goes here
         // not necessary for lab1
-        TransactionId tid = null;
-        if ((tid = pg.isDirty()) != null) {
+        Page pg = frame.page;
+        TransactionId tid = pg == null ? null : pg.isDirty();
+        if (tid == null)
+            return;
+        LogFile log = Database.getLogFile();
+        if (!tid.equals(frame.loggedBy))
+            logPage(log, tid, frame, pg);
+        log.force(pg.getLsn());
+        frame.write();
+    }
+
+    /**
+     * Write an update record for a cached page. The frame notes its recLSN
+     * before the log monitor is released, so a checkpoint either sees the
+     * page in the dirty-page table or comes before its record.
+     */
+    private static void logPage(LogFile log, TransactionId tid, Frame frame, Page pg)
+        throws IOException {
+        synchronized (log) {
+            pg.setLsn(log.logWrite(tid, pg.getBeforeImage(), pg));
+            frame.logged(pg.getLsn());
+        }
+    }
+
+    /**
+     * Start a background thread that trickles dirty pages out to disk:
+     * every interval it writes up to the specified number of pages whose
+     * changes are all in the log, those with the oldest recLSN first. With
+     * NO FORCE this keeps the dirty-page table of fuzzy checkpoints short,
+     * so the log can be truncated and restart has little to redo. Pages of
+     * running transactions are left alone.
+     *
+     * @param intervalMillis the time between two rounds
+     * @param pagesPerRound the maximum number of pages written per round
+     */
+    public void startTrickleWriter(long intervalMillis, int pagesPerRound) {
+        synchronized (writerLock) {
+            stopWriter(trickleWriter);
+            trickleWriter = new BackgroundWriter(this, "simpledb-trickle-writer", intervalMillis,
+                                                       () -> writeOldestPages(pagesPerRound));
+        }
+    }
+
+    /** Stop the trickle writer, if it runs, and wait for its current round. */
+    public void stopTrickleWriter() {
+        synchronized (writerLock) {
+            stopWriter(trickleWriter);
+            trickleWriter = null;
+        }
+    }
+
+    /**
+     * Start a background page cleaner that keeps the specified fraction of
+     * the frames free or clean, so that evictions find clean victims and
+     * the query thread that misses does not wait for a write. Every
+     * interval it writes as many dirty pages as the fraction is short of,
+     * in PageId order so that pages of a file are written in file order.
+     * Like the trickle writer it only writes pages whose changes are all
+     * in the log, forcing the log first.
+     *
+     * @param cleanFraction the fraction of frames to keep free or clean
+     * @param intervalMillis the time between two rounds
+     */
+    public void startPageCleaner(double cleanFraction, long intervalMillis) {
+        if (cleanFraction <= 0 || cleanFraction > 1)
+            throw new IllegalArgumentException("clean fraction must be in (0, 1]");
+        synchronized (writerLock) {
+            stopWriter(pageCleaner);
+            pageCleaner = new BackgroundWriter(this, "simpledb-page-cleaner", intervalMillis,
+                                                     () -> cleanPages(cleanFraction));
+        }
+    }
+
+    /** Stop the page cleaner, if it runs, and wait for its current round. */
+    public void stopPageCleaner() {
+        synchronized (writerLock) {
+            stopWriter(pageCleaner);
+            pageCleaner = null;
+        }
+    }
+
+    /** Stop all background writers of this pool. */
+    public void stopBackgroundWriters() {
+        stopTrickleWriter();
+        stopPageCleaner();
+    }
+
+    private static void stopWriter(BackgroundWriter writer) {
+        if (writer != null)
+            writer.stop();
+    }
+
+    /**
+     * Write dirty pages until the specified fraction of the frames is free
+     * or clean, or no more pages can be written, in PageId order.
+     *
+     * @return the number of pages written
+     */
+    public int cleanPages(double cleanFraction) throws IOException {
+        int target = (int) Math.ceil(cleanFraction * MAX_NO_PAGES);
+        int clean = MAX_NO_PAGES - residentPages.get();
+        ArrayList<PageId> writable = new ArrayList<PageId>();
+        long maxLsn = -1;
+        for (Map.Entry<PageId, Frame> e : pageTable.entrySet()) {
+            Frame frame = e.getValue();
+            Page pg = frame.page;
+            if (pg == null)
+                continue;
+            if (pg.isDirty() == null) {
+                clean++;
+            } else if (frame.evictable(false)) {
+                writable.add(e.getKey());
+                maxLsn = Math.max(maxLsn, pg.getLsn());
+            }
+        }
+        int needed = target - clean;
+        if (needed <= 0 || writable.isEmpty())
+            return 0;
+
+        writable.sort(Comparator.comparingInt(PageId::getTableId)
+                      .thenComparingInt(PageId::getPageNumber));
+        Database.getLogFile().force(maxLsn); // once for the whole batch
+        int written = 0;
+        for (PageId pid : writable) {
+            if (written == needed)
+                break;
+            Frame frame = pageTable.get(pid);
+            if (frame != null && frame.writeLogged()) {
+                frame.cleanedInBackground = true;
+                written++;
+            }
+        }
+        cleaned.addAndGet(written);
+        return written;
+    }
+
+    /** @return the number of pages written by cleanPages, including the page cleaner */
+    public long getCleanedPageCount() {
+        return cleaned.get();
+    }
+
+    /** @return the number of evictions that had to write their dirty victim */
+    public long getEvictionWriteCount() {
+        return evictionWrites.get();
+    }
+
+    /** @return the number of evictions whose victim needed no write because
+        the page cleaner wrote it */
+    public long getEvictionWritesAvoided() {
+        return evictionWritesAvoided.get();
+    }
+
+    /** @return the number of rounds of the background writers that failed
+        with an I/O error; the pages they could not write stay dirty */
+    public long getBackgroundWriteFailures() {
+        return backgroundWriteFailures.get();
+    }
+
+    /** @return the error of the last failed background writer round, or null */
+    public IOException getLastBackgroundWriteFailure() {
+        return lastBackgroundWriteFailure;
+    }
+
+    private void backgroundWriteFailed(String writer, IOException e) {
+        // the pages stay dirty, the next round or an eviction tries again
+        backgroundWriteFailures.incrementAndGet();
+        lastBackgroundWriteFailure = e;
+        Debug.log("%s: round failed: %s", writer, e);
+    }
+
+    /**
+     * Write up to the specified number of dirty pages whose changes are all
+     * in the log and that are not pinned, oldest recLSN first. Forces the
+     * log up to each page LSN first.
+     *
+     * @return the number of pages written
+     */
+    public int writeOldestPages(int maxPages) throws IOException {
+        ArrayList<Frame> candidates = new ArrayList<Frame>();
+        for (Frame frame : pageTable.values()) {
+            if (frame.recLsn != Frame.NO_LSN && frame.evictable(false) && frame.page.isDirty() != null)
+                candidates.add(frame);
+        }
+        candidates.sort((a, b) -> Long.compare(a.recLsn, b.recLsn));
+        LogFile log = Database.getLogFile();
+        int written = 0;
+        for (Frame frame : candidates) {
+            if (written == maxPages)
+                break;
+            Page pg = frame.page;
+            if (pg == null)
+                continue;
+            log.force(pg.getLsn());
+            if (frame.writeLogged())
+                written++;
+        }
+        trickled.addAndGet(written);
+        return written;
+    }
+
+    /** @return the number of pages written by writeOldestPages, including the trickle writer */
+    public long getTrickledPageCount() {
+        return trickled.get();
+    }
+
+    /**
+     * A daemon thread that runs a round of page writes every interval until
+     * it is stopped. It is stopped through a flag rather than an interrupt,
+     * which would close the channel of a file it is writing.
+     */
+    private static class BackgroundWriter {
+        interface Round {
+            void run() throws IOException;
+        }
+
+        private final Thread thread;
+        private boolean running = true; // protected by this
+
+        BackgroundWriter(BufferPool pool, String name, long intervalMillis, Round round) {
+            thread = new Thread(() -> {
+                while (awaitRound(intervalMillis)) {
+                    try {
+                        round.run();
+                    } catch (IOException e) {
+                        pool.backgroundWriteFailed(name, e);
+                    }
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private synchronized boolean awaitRound(long intervalMillis) {
             try {
-                Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (running)
+                    wait(intervalMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return running;
+        }
+
+        /** Stop the thread and wait for its current round. */
+        void stop() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
-            pg.markDirty(false, tid);
         }
     }
 
-    private static class Frame { // buffer pool frame
-        Page page;
+    /**
+     * A buffer pool frame. Its monitor is the frame latch: it guards state
+     * changes and write-back of the page, and threads wait on it for a page
+     * that is being loaded or evicted.
+     */
+    private static class Frame {
+        final PageId pid;
+        final LockManager locks;
+        static final int LOADING = 0;  // page is being read, page is null
+        static final int READY = 1;    // page is cached
+        static final int EVICTING = 2; // chosen as victim, page is being written back
+        static final int GONE = 3;     // no longer in the page table
+
+        volatile Page page;
+        volatile int state = LOADING;
+        // pinned frames are never evicted, written under the latch
+        volatile int pinCount = 0;
+        // the finished transaction whose changes to the page are all in the
+        // log; while it is still the dirtier the page is written without logging
+        volatile TransactionId loggedBy;
+        static final long NO_LSN = -1;
+        // LSN of the first log record of a change that is not on disk yet
+        volatile long recLsn = NO_LSN;
+        // written by the page cleaner since it was last dirtied
+        volatile boolean cleanedInBackground = false;
 
-        public Frame(Page pg) {
+        Frame(PageId pid, LockManager locks) {
+            this.pid = pid;
+            this.locks = locks;
+        }
+
+        synchronized void loaded(Page pg) {
             page = pg;
-//            rwLock = new ReentrantReadWriteLock();
-//            transactionIds = new ArrayList<>();
-//            pinCount = 0;
+            if (state == LOADING) // else discarded while the page was read
+                state = READY;
+            notifyAll();
+        }
+
+        /** @return the cached page, or null if the frame left the pool */
+        Page awaitPage() {
+            Page pg = page;
+            if (state == READY && pg != null)
+                return pg; // latch free fast path
+            return awaitPageLatched();
+        }
 
+        /** @return the cached page, or null if the frame left the pool; waits
+            for a write-back or eviction under way to finish */
+        synchronized Page awaitPageLatched() {
+            awaitSettled();
+            return state == READY ? page : null;
         }
 
-        public Page getPage(TransactionId tid, Permissions perm) {
+        /** @return the cached page, pinned, or null if the frame left the pool */
+        synchronized Page pin() {
+            awaitSettled();
+            if (state != READY)
+                return null;
+            pinCount++;
             return page;
         }
+
+        /** Called once for each pin, by the PagePin that took it. */
+        synchronized void unpin() {
+            if (pinCount > 0)
+                pinCount--;
+        }
+
+        /** @return false if the frame left the pool and the page was not replaced */
+        synchronized boolean replace(Page pg) {
+            awaitSettled();
+            if (state != READY)
+                return false;
+            page = pg;
+            return true;
+        }
+
+        private void awaitSettled() {
+            boolean interrupted = false;
+            while (state == LOADING || state == EVICTING) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /** @return true if the page may be written back and evicted now */
+        boolean evictable(boolean steal) {
+            if (state != READY || pinCount > 0)
+                return false;
+            TransactionId dirtier = page.isDirty();
+            return dirtier == null || steal || (dirtier.equals(loggedBy) && !beingChanged());
+        }
+
+        /**
+         * @return true if a transaction other than loggedBy holds the page
+         *         exclusively: it may be changing the page before it marks it
+         *         dirty. One that locks the page later takes the latch
+         *         before it changes the page, see fetchPage.
+         */
+        private boolean beingChanged() {
+            TransactionId holder = locks.getExclusiveHolder(pid);
+            return holder != null && !holder.equals(loggedBy);
+        }
+
+        synchronized boolean beginEviction(boolean steal) {
+            if (!evictable(steal))
+                return false;
+            state = EVICTING;
+            return true;
+        }
+
+        /** The victim could not be written back, it stays cached. */
+        synchronized void abortEviction() {
+            if (state == EVICTING)
+                state = READY;
+            notifyAll();
+        }
+
+        /** @return true if the frame was cached or loading until now */
+        synchronized boolean remove() {
+            boolean wasResident = state == LOADING || state == READY;
+            state = GONE;
+            notifyAll();
+            return wasResident;
+        }
+
+        void flush(BufferPool pool) throws IOException {
+            if (state != GONE)
+                pool.flushPage(this);
+        }
+
+        /** Write the page back if it is dirty, under the latch. */
+        synchronized void write() throws IOException {
+            Page pg = page;
+            TransactionId tid;
+            if (pg == null || state == GONE || (tid = pg.isDirty()) == null)
+                return;
+            Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
+            pg.markDirty(false, tid);
+            recLsn = NO_LSN;
+        }
+
+        /** Write the page back if it is dirty with changes that are all in
+            the log, and not in use, under the latch.
+            @return true if the page was written */
+        synchronized boolean writeLogged() throws IOException {
+            if (state != READY || pinCount > 0)
+                return false;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null || !dirtier.equals(loggedBy) || beingChanged())
+                return false;
+            write();
+            return true;
+        }
+
+        /** Note that a change of the page was logged with the specified LSN. */
+        synchronized void logged(long lsn) {
+            if (recLsn == NO_LSN)
+                recLsn = lsn;
+            cleanedInBackground = false;
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (PageId pid : lockManager.getExclusivelyLockedPages(tid)) {
+            Frame frame = pageTable.get(pid);
+            if (frame != null)
+                frame.flush(this);
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
+        PageId victim;
+        Frame frame;
+        evictionLock.lock();
+        try {
+            drainAccesses();
+            while (true) {
+                boolean steal = this.steal;
+                victim = policy.selectVictim(pid -> {
+                    Frame f = pageTable.get(pid);
+                    // NO STEAL: pages dirtied by running transactions stay in the pool
+                    return f != null && f.evictable(steal);
+                });
+                if (victim == null) {
+                    if (residentPages.get() <= MAX_NO_PAGES)
+                        return; // a reservation was cancelled or a page discarded meanwhile
+                    // frames reserved by other threads become evictable once they are loaded
+                    if (pendingFrames.get() == 0)
+                        throw new DbException("no page can be evicted from the buffer pool, all pages are pinned or dirty");
+                    settledCondition.awaitUninterruptibly();
+                    continue;
+                }
+                frame = pageTable.get(victim);
+                // frames only leave READY under the eviction lock, but may have been pinned meanwhile
+                if (frame.beginEviction(steal))
+                    break;
+                policy.evictionFailed(victim);
+            }
+            residentPages.decrementAndGet();
+        } finally {
+            evictionLock.unlock();
+        }
+        // write back outside the eviction lock; hits on the victim wait on its latch
+        boolean dirty = frame.page.isDirty() != null;
+        try {
+            frame.flush(this);
+        } catch (IOException e) {
+            // the page is still dirty, dropping it would lose its changes
+            evictionLock.lock();
+            try {
+                residentPages.incrementAndGet();
+                frame.abortEviction();
+                if (pageTable.get(victim) == frame)
+                    policy.evictionFailed(victim);
+            } finally {
+                evictionLock.unlock();
+            }
+            throw new DbException("could not write back page " + victim + " to evict it: " + e);
+        }
+        if (dirty)
+            evictionWrites.incrementAndGet();
+        else if (frame.cleanedInBackground)
+            evictionWritesAvoided.incrementAndGet();
+        pageTable.remove(victim, frame);
+        frame.remove();
+        evictions.incrementAndGet();
     }
 
 }
@@ -168,7 +168,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap|slotted]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -183,6 +183,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("varchar"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -196,10 +198,27 @@ public class Catalog {
                         }
                     }
                 }
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                boolean mmap = false;
+                // tables with varchar fields are always slotted
+                boolean slotted = types.contains(Type.VARCHAR_TYPE);
+                if (option.toLowerCase().equals("mmap"))
+                    mmap = true;
+                else if (option.toLowerCase().equals("slotted"))
+                    slotted = true;
+                else if (!option.isEmpty()) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
+                if (mmap && slotted) {
+                    System.out.println("Table " + name + " has varchar fields, it cannot be mmap");
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = slotted ? new SlottedFile(tabFile, t) : new HeapFile(tabFile, t, mmap);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Pages sit in a circular array with a
+ * reference bit that is set on every access; the clock hand sweeps the
+ * array, clearing set bits and evicting the first page whose bit is clear.
+ * Approximates LRU while an access only sets a bit.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private PageId[] slots = new PageId[16];
+    private boolean[] referenced = new boolean[16];
+    private final HashMap<PageId, Integer> slotOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int used = 0; // slots handed out so far, free or not
+    private int hand = 0;
+
+    public void pageAdded(PageId pid) {
+        referenced[track(pid)] = true;
+    }
+
+    /** @return the slot of the specified page, giving it one if it has none */
+    private int track(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? newSlot() : freeSlots.poll();
+            slots[slot] = pid;
+            slotOf.put(pid, slot);
+        }
+        return slot;
+    }
+
+    private int newSlot() {
+        if (used == slots.length) {
+            slots = Arrays.copyOf(slots, used * 2);
+            referenced = Arrays.copyOf(referenced, used * 2);
+        }
+        return used++;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced[slot] = true;
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.add(slot);
+        }
+    }
+
+    public PageId selectVictim(Predicate<PageId> evictable) {
+        if (used == 0)
+            return null;
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * used; step++) {
+            int slot = hand;
+            hand = (hand + 1) % used;
+            PageId pid = slots[slot];
+            if (pid == null)
+                continue;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+            } else if (evictable.test(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public void evictionFailed(PageId pid) {
+        // the hand had already cleared its reference bit
+        referenced[track(pid)] = false;
+    }
+}
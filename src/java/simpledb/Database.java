@@ -17,6 +17,7 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileChannelPool _channelpool;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -24,6 +25,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _channelpool = new FileChannelPool();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the pool of open data file channels of the static Database instance */
+    public static FileChannelPool getFileChannelPool() {
+        return _instance.get()._channelpool;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -59,6 +66,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            ((BufferPool) bufferPoolF.get(_instance.get())).stopBackgroundWriters();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,7 +83,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.stopBackgroundWriters();
+        old._channelpool.closeAll();
+        old._logfile.disableGroupCommit();
     }
 
 }
@@ -43,6 +43,22 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts the specified tuples to the file on behalf of transaction, as
+     * insertTuple would one at a time. Implementations may write pages for
+     * large batches directly instead of through the buffer pool.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  These tuples should be updated to
+     *          reflect that they are now stored in this file.
+     * @return An ArrayList contain the pages that were modified and should
+     *          be put into the buffer pool
+     * @throws DbException if the tuples cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Collection<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -59,6 +75,20 @@ public interface DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Removes the specified tuples from the file on behalf of the specified
+     * transaction, as deleteTuple would one at a time. Implementations may
+     * group the tuples by page so that each page is updated once.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to delete
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *   of the file
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, Collection<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
@@ -10,6 +11,9 @@ public class Delete extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Maximum number of tuples read from the child before they are deleted. */
+    static final int BATCH_SIZE = 1024;
+
     private TransactionId tid;
     private OpIterator child;
     private boolean delFlag = false;
@@ -55,11 +59,12 @@ public class Delete extends Operator {
     /**
      * Deletes tuples as they are read from the child operator. Deletes are
      * processed via the buffer pool (which can be accessed via the
-     * Database.getBufferPool() method.
+     * Database.getBufferPool() method), in batches of up to BATCH_SIZE
+     * tuples, so that each page of a batch is updated once.
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 
@@ -69,14 +74,20 @@ public class Delete extends Operator {
         Tuple ret = new Tuple(this.getTupleDesc());
         int noDel = 0;
         BufferPool bf = Database.getBufferPool();
-        while (child.hasNext()) {
-            noDel++;
-            try {
-                bf.deleteTuple(this.tid, child.next());
-            } catch (IOException e) {
-                throw new DbException("IO error");
-//                e.printStackTrace();
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        try {
+            while (child.hasNext()) {
+                noDel++;
+                batch.add(child.next());
+                if (batch.size() == BATCH_SIZE) {
+                    bf.deleteTuples(this.tid, batch);
+                    batch.clear();
+                }
             }
+            if (!batch.isEmpty())
+                bf.deleteTuples(this.tid, batch);
+        } catch (IOException e) {
+            throw new DbException("IO error");
         }
         ret.setField(0, new IntField(noDel));
         return ret;
@@ -0,0 +1,287 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileChannelPool keeps a long-lived {@link FileChannel} open for each file
+ * backing a DbFile, so page I/O is a single positional read or write instead
+ * of an open/seek/read/close sequence per page.
+ * <p>
+ * Positional reads and writes do not touch the channel's position, so any
+ * number of threads may share one channel. The number of open channels is
+ * bounded; when the bound is reached the least recently used channel is
+ * closed. An operation that races with such a close simply reopens the file
+ * and retries.
+ *
+ * @Threadsafe
+ */
+public class FileChannelPool {
+
+    /** Default maximum number of files kept open at the same time. */
+    public static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+    private final int maxOpenFiles;
+
+    // access ordered, so the eldest entry is the least recently used channel. guarded by this
+    private final LinkedHashMap<File, FileChannel> channels;
+    private boolean closed = false;
+
+    // one monitor per file, held while appending so appenders don't claim the same offset
+    private final ConcurrentHashMap<File, Object> appendLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool that keeps at most maxOpenFiles channels open.
+     *
+     * @param maxOpenFiles maximum number of simultaneously open files.
+     */
+    public FileChannelPool(int maxOpenFiles) {
+        if (maxOpenFiles <= 0)
+            throw new IllegalArgumentException("maxOpenFiles must be positive");
+        this.maxOpenFiles = maxOpenFiles;
+        this.channels = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public FileChannelPool() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * Returns the open channel for the specified file, opening it (and closing
+     * the least recently used channel if the pool is full) when needed.
+     * The channel may be closed by another thread at any time after this
+     * returns. Package-private so tests can interpose on it.
+     */
+    FileChannel acquire(File f) throws IOException {
+        File key = f.getAbsoluteFile();
+        ArrayList<FileChannel> victims = new ArrayList<>();
+        FileChannel fc;
+        synchronized (this) {
+            if (closed)
+                throw new ClosedChannelException();
+            fc = channels.get(key);
+            if (fc != null && fc.isOpen())
+                return fc;
+            fc = FileChannel.open(key.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.put(key, fc);
+            Iterator<Map.Entry<File, FileChannel>> it = channels.entrySet().iterator();
+            while (channels.size() > maxOpenFiles && it.hasNext()) {
+                Map.Entry<File, FileChannel> eldest = it.next();
+                if (eldest.getValue() == fc)
+                    continue;
+                victims.add(eldest.getValue());
+                it.remove();
+            }
+        }
+        // closing may wait for in-flight operations, do it outside the monitor
+        for (FileChannel victim : victims)
+            closeQuietly(victim);
+        return fc;
+    }
+
+    /** Forget a channel that was closed underneath us (e.g. by an interrupt). */
+    private synchronized void invalidate(File f, FileChannel fc) {
+        File key = f.getAbsoluteFile();
+        if (channels.get(key) == fc)
+            channels.remove(key);
+    }
+
+    /**
+     * Handles a channel that was closed after it was acquired: by the pool
+     * making room for another file, or by closeAll(). The caller retries with
+     * a fresh channel unless the whole pool is closed, in which case e is
+     * rethrown.
+     */
+    private void closedUnderneath(File f, FileChannel fc, ClosedChannelException e)
+            throws ClosedChannelException {
+        invalidate(f, fc);
+        synchronized (this) {
+            if (closed)
+                throw e;
+        }
+    }
+
+    /**
+     * Reads bytes from the specified file into dst, starting at the given file
+     * position, until dst is full or the end of the file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the end
+     *         of the file.
+     */
+    public int read(File f, ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        while (true) {
+            FileChannel fc = acquire(f);
+            try {
+                while (dst.hasRemaining()) {
+                    int n = fc.read(dst, position + (dst.position() - start));
+                    if (n < 0)
+                        break;
+                }
+                int total = dst.position() - start;
+                return total == 0 && dst.hasRemaining() ? -1 : total;
+            } catch (ClosedByInterruptException e) {
+                invalidate(f, fc);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread after we acquired it, reopen
+                closedUnderneath(f, fc, e);
+            }
+        }
+    }
+
+    /**
+     * Reads exactly dst.remaining() bytes from the specified file, starting at
+     * the given file position.
+     *
+     * @throws IllegalArgumentException if the file ends before dst is filled.
+     */
+    public void readFully(File f, ByteBuffer dst, long position) throws IOException {
+        int want = dst.remaining();
+        int n = read(f, dst, position);
+        if (n < want)
+            throw new IllegalArgumentException("Unable to read " + want + " bytes at offset "
+                    + position + " of " + f.getName());
+    }
+
+    /**
+     * Writes all remaining bytes of src to the specified file, starting at the
+     * given file position. The file grows as needed.
+     */
+    public void writeFully(File f, ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        while (true) {
+            FileChannel fc = acquire(f);
+            try {
+                while (src.hasRemaining())
+                    fc.write(src, position + (src.position() - start));
+                return;
+            } catch (ClosedByInterruptException e) {
+                invalidate(f, fc);
+                throw e;
+            } catch (ClosedChannelException e) {
+                closedUnderneath(f, fc, e);
+            }
+        }
+    }
+
+    /**
+     * Appends src to the end of the specified file.
+     *
+     * @return the file position the data was written at.
+     */
+    public long append(File f, ByteBuffer src) throws IOException {
+        synchronized (lockFor(f)) {
+            long position = size(f);
+            writeFully(f, src, position);
+            return position;
+        }
+    }
+
+    /** Returns the current size of the specified file in bytes. */
+    public long size(File f) throws IOException {
+        while (true) {
+            FileChannel fc = acquire(f);
+            try {
+                return fc.size();
+            } catch (ClosedByInterruptException e) {
+                invalidate(f, fc);
+                throw e;
+            } catch (ClosedChannelException e) {
+                closedUnderneath(f, fc, e);
+            }
+        }
+    }
+
+    /**
+     * Maps a region of the specified file into memory, read only. The mapping
+     * stays valid after the channel it was created from is closed.
+     *
+     * @param position the file position the region starts at
+     * @param size the size of the region in bytes
+     */
+    public MappedByteBuffer map(File f, long position, long size) throws IOException {
+        while (true) {
+            FileChannel fc = acquire(f);
+            try {
+                return fc.map(FileChannel.MapMode.READ_ONLY, position, size);
+            } catch (ClosedByInterruptException e) {
+                invalidate(f, fc);
+                throw e;
+            } catch (ClosedChannelException e) {
+                closedUnderneath(f, fc, e);
+            }
+        }
+    }
+
+    /** Forces any updates of the specified file to the storage device. */
+    public void force(File f) throws IOException {
+        while (true) {
+            FileChannel fc = acquire(f);
+            try {
+                fc.force(false);
+                return;
+            } catch (ClosedByInterruptException e) {
+                invalidate(f, fc);
+                throw e;
+            } catch (ClosedChannelException e) {
+                closedUnderneath(f, fc, e);
+            }
+        }
+    }
+
+    private Object lockFor(File f) {
+        return appendLocks.computeIfAbsent(f.getAbsoluteFile(), k -> new Object());
+    }
+
+    /** Returns the number of channels currently open. */
+    public synchronized int numOpenFiles() {
+        return channels.size();
+    }
+
+    /** Closes the channel of the specified file, if it is open. */
+    public void close(File f) {
+        FileChannel fc;
+        synchronized (this) {
+            fc = channels.remove(f.getAbsoluteFile());
+        }
+        closeQuietly(fc);
+    }
+
+    /**
+     * Closes all open channels. Any later I/O through this pool fails with a
+     * {@link ClosedChannelException}.
+     */
+    public void closeAll() {
+        ArrayList<FileChannel> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for (FileChannel fc : open)
+            closeQuietly(fc);
+    }
+
+    private static void closeQuietly(FileChannel fc) {
+        if (fc == null)
+            return;
+        try {
+            fc.close();
+        } catch (IOException e) {
+            // nothing useful to do, the channel is gone either way
+        }
+    }
+}
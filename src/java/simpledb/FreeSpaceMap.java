@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The free-space map of a HeapFile or SlottedFile: one bit per page, set once
+ * the page was found full, so that inserts go straight to a page with room instead of
+ * reading every page before it. The map is kept in memory and in a side
+ * file next to the heap file (its name plus ".fsm"), in which a missing
+ * byte means that its pages may have room.
+ * <p>
+ * The side file starts with a stamp of the length and modification time of
+ * the heap file, renewed after every write through its DbFile. A map whose
+ * stamp does not match the heap file when it is opened, e.g. because the
+ * heap file was rewritten or copied over, is thrown away.
+ * <p>
+ * The map is a hint. A page it marks free may turn out full, and is marked
+ * full then; a page is marked free again when a tuple is deleted from it.
+ * A page that a transaction fills is only marked full in memory until the
+ * transaction commits, and free again if it aborts, so the pages of an
+ * aborted insert, which rollback empties, are not lost.
+ */
+class FreeSpaceMap {
+
+    /** bytes of the stamp at the start of the side file */
+    private static final int STAMP_SIZE = 16;
+
+    private final File heapFile;
+    private final File file;
+    private final BitSet full; // guarded by this
+    private boolean stamped; // the side file exists, guarded by this
+    // pages filled by each live transaction, and all of them: full in
+    // memory but not in the side file yet. guarded by this
+    private final HashMap<TransactionId, BitSet> filledBy = new HashMap<>();
+    private final BitSet unwritten = new BitSet();
+
+    // the maps each live transaction filled pages of, see markFilled
+    private static final ConcurrentHashMap<TransactionId, Set<FreeSpaceMap>> filling =
+        new ConcurrentHashMap<>();
+
+    FreeSpaceMap(File heapFile) {
+        this.heapFile = heapFile;
+        this.file = sideFile(heapFile);
+        this.full = load();
+    }
+
+    /** @return the side file holding the map of the specified heap file */
+    static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Throw away the map of a heap file that is created or overwritten, so
+     * the new pages are not taken for full.
+     */
+    static void reset(File heapFile) {
+        File side = sideFile(heapFile);
+        Database.getFileChannelPool().close(side);
+        side.delete();
+    }
+
+    /**
+     * @return the map of the side file, or an empty map if there is none or
+     *         it is stale, in which case the side file is deleted
+     */
+    private BitSet load() {
+        if (!file.exists())
+            return new BitSet();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buf.remaining() >= STAMP_SIZE && buf.getLong() == heapFile.length()
+                    && buf.getLong() == heapFile.lastModified()) {
+                stamped = true;
+                return BitSet.valueOf(buf);
+            }
+        } catch (IOException e) {
+            // an unreadable map is as good as a stale one
+        }
+        reset(heapFile);
+        return new BitSet();
+    }
+
+    /**
+     * Renew the stamp of the side file after a write to the heap file, so
+     * the map is kept the next time the heap file is opened.
+     */
+    synchronized void heapWritten() throws IOException {
+        if (stamped)
+            writeStamp();
+    }
+
+    private void writeStamp() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(STAMP_SIZE);
+        buf.putLong(heapFile.length()).putLong(heapFile.lastModified()).flip();
+        Database.getFileChannelPool().writeFully(file, buf, 0);
+    }
+
+    /**
+     * @return the number of the first page at or after from and before
+     *         numPages that may have room, or -1 if there is none
+     */
+    synchronized int findFreePage(int from, int numPages) throws IOException {
+        int pgNo = full.nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /** Mark a page as full. */
+    synchronized void markFull(int pgNo) throws IOException {
+        if (!full.get(pgNo)) {
+            full.set(pgNo);
+            writeByte(pgNo);
+        }
+    }
+
+    /**
+     * Mark a page that the specified transaction filled as full. The mark
+     * is written to the side file when the transaction commits, and dropped
+     * if it aborts.
+     */
+    synchronized void markFilled(TransactionId tid, int pgNo) {
+        if (full.get(pgNo))
+            return;
+        full.set(pgNo);
+        unwritten.set(pgNo);
+        filledBy.computeIfAbsent(tid, k -> new BitSet()).set(pgNo);
+        filling.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(this);
+    }
+
+    /** Mark a page as having room, e.g. after a delete from it. */
+    synchronized void markFree(int pgNo) throws IOException {
+        if (full.get(pgNo)) {
+            full.clear(pgNo);
+            unwritten.clear(pgNo);
+            writeByte(pgNo);
+        }
+    }
+
+    /**
+     * Write the marks of the pages the specified transaction filled to the
+     * side files if it committed, or mark the pages free if it aborted.
+     * Called once the transaction is complete, before it releases its locks.
+     */
+    static void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        Set<FreeSpaceMap> maps = filling.remove(tid);
+        if (maps == null)
+            return;
+        for (FreeSpaceMap map : maps)
+            map.filledComplete(tid, commit);
+    }
+
+    private synchronized void filledComplete(TransactionId tid, boolean commit) throws IOException {
+        BitSet pages = filledBy.remove(tid);
+        for (int pgNo = pages.nextSetBit(0); pgNo >= 0; pgNo = pages.nextSetBit(pgNo + 1)) {
+            if (!unwritten.get(pgNo))
+                continue; // marked free meanwhile
+            unwritten.clear(pgNo);
+            if (commit)
+                writeByte(pgNo);
+            else
+                full.clear(pgNo);
+        }
+    }
+
+    /** Write the byte of the side file that holds the bit of the page. */
+    private void writeByte(int pgNo) throws IOException {
+        int index = pgNo / 8;
+        BitSet bits = full.get(index * 8, index * 8 + 8);
+        bits.andNot(unwritten.get(index * 8, index * 8 + 8));
+        byte[] bytes = bits.toByteArray();
+        byte b = bytes.length == 0 ? 0 : bytes[0];
+        if (!stamped) {
+            writeStamp();
+            stamped = true;
+        }
+        Database.getFileChannelPool().writeFully(file, ByteBuffer.wrap(new byte[] { b }), STAMP_SIZE + index);
+    }
+}
@@ -1,10 +1,19 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -18,10 +27,30 @@ import java.util.NoSuchElementException;
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages per mapped region of a memory mapped HeapFile. */
+    static final int MMAP_CHUNK_PAGES = 4096;
+
     private File file;
     private TupleDesc td;
 
-    private int insertPgNo;
+    // which pages have room for inserts
+    private final FreeSpaceMap freeSpace;
+
+    /** Maximum number of pages insertTuples appends with one write. */
+    static final int BULK_WRITE_PAGES = 64;
+
+    private final AtomicLong bulkPages = new AtomicLong();
+
+    /** Default maximum number of pages a scan reads ahead of its cursor. */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 16;
+
+    private volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+
+    private final boolean mmap;
+    // mapped regions of the file, MMAP_CHUNK_PAGES pages each. guarded by itself
+    private final ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+    private int mappedPageSize; // page size the chunks were mapped with. guarded by chunks
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -30,9 +59,32 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mmap
+     *            if true, pages are read from a read-only memory mapping of
+     *            the file instead of with a read() call per page. Writes
+     *            still go through the file channel.
+     * @throws IllegalArgumentException if a field of td is not of a fixed
+     *            length type; such tables are stored in a SlottedFile
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap) {
         // some code goes here
+        for (int i = 0; i < td.numFields(); i++) {
+            if (!td.getFieldType(i).isFixedLength())
+                throw new IllegalArgumentException(td.getFieldType(i) + " fields need a SlottedFile");
+        }
         this.file = f;
         this.td = td;
+        this.mmap = mmap;
+        this.freeSpace = new FreeSpaceMap(f);
     }
 
     /**
@@ -45,6 +97,24 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Set the maximum number of pages iterators over this file request ahead
+     * of the page they are reading. The actual window adapts to the scan
+     * speed and never exceeds a quarter of the buffer pool.
+     *
+     * @param pages maximum read-ahead window in pages, 0 disables read-ahead
+     */
+    public void setReadAheadPages(int pages) {
+        this.readAheadPages = pages;
+    }
+
+    /**
+     * @return true if pages of this HeapFile are read through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return mmap;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -85,45 +155,58 @@ public class HeapFile implements DbFile {
             throw new IllegalArgumentException();
 
         int pgSize = BufferPool.getPageSize();
-        byte[] data = new byte[pgSize];
-        HeapPage ret = null;
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            long offset = pgSize *(long) pgNo;
-            raf.seek(offset);
-            raf.read(data);
-            ret = new HeapPage(new HeapPageId(pid.getTableId(),pgNo),data);
-        }catch (IOException e){
-            e.printStackTrace();
-            System.exit(1);
+        try {
+            if (mmap)
+                return new HeapPage(new HeapPageId(pid.getTableId(), pgNo), mappedPage(pgNo));
+            byte[] data = new byte[pgSize];
+            Database.getFileChannelPool().readFully(file, ByteBuffer.wrap(data), pgSize * (long) pgNo);
+            return new HeapPage(new HeapPageId(pid.getTableId(), pgNo), data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return ret;
     }
 
-    // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        int pgNo = page.getId().getPageNumber();
-        if (pgNo == numPages())
-            appendPage(page);
-        else {
-            try (RandomAccessFile raf = new RandomAccessFile(file, "w")) {
-                long offset = BufferPool.getPageSize();
-                raf.seek(offset);
-                raf.write(page.getPageData());
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Returns a view of the given page inside the memory mapping of the file.
+     * The region holding the page is (re)mapped when the page lies past the
+     * end of what is mapped so far, i.e. when the file has grown since.
+     */
+    private ByteBuffer mappedPage(int pgNo) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        int chunkNo = pgNo / MMAP_CHUNK_PAGES;
+        int offset = (pgNo % MMAP_CHUNK_PAGES) * pgSize;
+        ByteBuffer region;
+        synchronized (chunks) {
+            if (mappedPageSize != pgSize) {
+                chunks.clear();
+                mappedPageSize = pgSize;
+            }
+            while (chunks.size() <= chunkNo)
+                chunks.add(null);
+            MappedByteBuffer chunk = chunks.get(chunkNo);
+            if (chunk == null || chunk.capacity() < offset + pgSize) {
+                long start = chunkNo * (long) MMAP_CHUNK_PAGES * pgSize;
+                long len = Math.min(MMAP_CHUNK_PAGES * (long) pgSize, numPages() * (long) pgSize - start);
+                chunk = Database.getFileChannelPool().map(file, start, len);
+                chunks.set(chunkNo, chunk);
             }
+            region = chunk.duplicate();
         }
+        region.position(offset);
+        region.limit(offset + pgSize);
+        return region.slice();
     }
 
-    private void appendPage(Page page) {
-        byte[] pgData = page.getPageData();
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file, true))) {
-            bos.write(pgData);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        // some code goes here
+        // not necessary for lab1
+        // a page numbered numPages() lands right after the last page, i.e. it is appended.
+        // in mmap mode the write shows through the shared mapping, and an appended page
+        // is picked up by remapping the last region on its first read
+        long offset = BufferPool.getPageSize() * (long) page.getId().getPageNumber();
+        Database.getFileChannelPool().writeFully(file, ByteBuffer.wrap(page.getPageData()), offset);
+        freeSpace.heapWritten();
     }
 
     /**
@@ -150,30 +233,140 @@ public class HeapFile implements DbFile {
      */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-//        Database.getBufferPool().getPage(tid,)
-
+        BufferPool bp = Database.getBufferPool();
         HeapPage pg = null;
         boolean found = false;
-        for (int np = this.numPages(), bound = this.insertPgNo + this.numPages(); this.insertPgNo < bound; ++this.insertPgNo) {
-            PageId pid = new HeapPageId(getId(), this.insertPgNo % np);
-            pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        // only visit pages the free-space map does not know to be full
+        int np = this.numPages();
+        for (int pgNo = freeSpace.findFreePage(0, np); pgNo >= 0; pgNo = freeSpace.findFreePage(pgNo + 1, np)) {
+            PageId pid = new HeapPageId(getId(), pgNo);
+            // skip a cached page that is visibly full without locking it. Otherwise lock the
+            // page exclusively at once: two inserters upgrading shared locks would deadlock
+            HeapPage cached = (HeapPage) bp.peekPage(pid);
+            if (cached != null && cached.getNumEmptySlots() == 0)
+                continue;
+            boolean held = bp.holdsLock(tid, pid);
+            pg = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
             if (pg.getNumEmptySlots() > 0) {
                 pg.insertTuple(t);
                 pg.markDirty(true, tid);
+                if (pg.getNumEmptySlots() == 0)
+                    freeSpace.markFilled(tid, pgNo);
                 found = true;
                 break;
             }
+            freeSpace.markFull(pgNo);
+            if (!held)
+                bp.releasePage(tid, pid);
         }
         if (!found) {
-            // no page, insert
-            pg = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
+            // no page, extend the file by an empty page and insert into it through the buffer pool
+            PageId pid;
+            synchronized (this) {
+                pid = new HeapPageId(getId(), numPages());
+                this.writePage(new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData()));
+            }
+            pg = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
             pg.insertTuple(t);
-            this.writePage(pg);
+            pg.markDirty(true, tid);
+            if (pg.getNumEmptySlots() == 0)
+                freeSpace.markFilled(tid, pid.getPageNumber());
         }
 
         return new ArrayList<>(Arrays.asList(pg));
     }
 
+    /**
+     * Inserts the specified tuples to the file on behalf of transaction, as
+     * insertTuple would one at a time, except that every whole page's worth
+     * of tuples is put on a new page appended to the file. These pages are
+     * filled in memory, logged, and written in runs of up to
+     * BULK_WRITE_PAGES pages with one sequential write each, without going
+     * through the buffer pool; the transaction holds an exclusive lock on
+     * them. The tuples left over go through insertTuple, so they fill free
+     * space in existing pages.
+     *
+     * @param tid    The transaction performing the update
+     * @param tuples The tuples to add. They are updated to reflect that they
+     *               are now stored in this file.
+     * @return An ArrayList contain the pages that were modified in the
+     *         buffer pool; the appended pages are already on disk
+     * @throws DbException if the tuples cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Collection<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        for (Tuple t : tuples) {
+            if (!td.equals(t.getTupleDesc()))
+                throw new DbException("not legal tuple");
+        }
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        Iterator<Tuple> it = tuples.iterator();
+        int remaining = tuples.size();
+        while (remaining >= perPage) {
+            int n = Math.min(remaining / perPage, BULK_WRITE_PAGES);
+            appendPages(tid, it, n);
+            remaining -= n * perPage;
+        }
+        ArrayList<Page> pages = new ArrayList<Page>();
+        while (it.hasNext())
+            pages.addAll(insertTuple(tid, it.next()));
+        return pages;
+    }
+
+    /**
+     * Fill the specified number of new pages with tuples, log them, and
+     * append them to the file with one write.
+     */
+    private void appendPages(TransactionId tid, Iterator<Tuple> tuples, int n)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        LogFile log = Database.getLogFile();
+        int pgSize = BufferPool.getPageSize();
+        int first;
+        synchronized (this) {
+            // reserve the pages by extending the file with empty ones first, so
+            // that rolling back the records below always finds the pages
+            first = numPages();
+            for (int i = 0; i < n; i++) {
+                // the page is past the end of the file, nobody else can hold it
+                bp.lockPage(tid, new HeapPageId(getId(), first + i), Permissions.READ_WRITE);
+            }
+            Database.getFileChannelPool().writeFully(file, ByteBuffer.allocate(n * pgSize), pgSize * (long) first);
+            freeSpace.heapWritten();
+            for (int i = 0; i < n; i++)
+                freeSpace.markFilled(tid, first + i);
+        }
+
+        // the pages are locked, so concurrent inserts can go on meanwhile
+        byte[] empty = HeapPage.createEmptyPageData();
+        ByteBuffer buf = ByteBuffer.allocate(n * pgSize);
+        long lsn = 0;
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(getId(), first + i);
+            HeapPage pg = new HeapPage(pid, empty);
+            while (pg.getNumEmptySlots() > 0)
+                pg.insertTuple(tuples.next());
+            // logged like a flush of the page, so an abort empties it again
+            lsn = log.logWrite(tid, new HeapPage(pid, empty), pg);
+            pg.setLsn(lsn);
+            buf.put(pg.getPageData());
+        }
+        log.force(lsn);
+        buf.flip();
+        Database.getFileChannelPool().writeFully(file, buf, pgSize * (long) first);
+        freeSpace.heapWritten();
+        // a scan may have read the empty pages ahead, which takes no lock
+        for (int i = 0; i < n; i++)
+            bp.discardPage(new HeapPageId(getId(), first + i));
+        bulkPages.addAndGet(n);
+    }
+
+    /** @return the number of pages appended by insertTuples */
+    public long getBulkPageCount() {
+        return bulkPages.get();
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -189,25 +382,67 @@ public class HeapFile implements DbFile {
      */
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        int id = getId();
-        HeapPage delPg = null;
-        boolean find = false;
-        for (int i = 0, np = numPages(); i < np; ++i) {
-            delPg = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(id, i), Permissions.READ_WRITE);
-            try {
-                delPg.deleteTuple(t);
-                find = true;
-                break;
-            } catch (DbException e) {
-                //pass
-            }
-        }
-        if (!find)
-            throw new DbException("not delete");
+        // the record id names the page, so only that page is locked and read
+        HeapPage delPg = (HeapPage) Database.getBufferPool().getPage(tid, pageOf(t), Permissions.READ_WRITE);
+        delPg.deleteTuple(t);
         delPg.markDirty(true, tid);
+        markFree(delPg);
         return new ArrayList<>(Arrays.asList(delPg));
     }
 
+    /**
+     * Removes the specified tuples from the file on behalf of the specified
+     * transaction. The tuples are grouped by the page their record id names,
+     * so each page is locked, read and marked dirty once, in page order.
+     *
+     * @param tid    The transaction performing the update
+     * @param tuples The tuples to delete
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *                     of the file
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, Collection<Tuple> tuples) throws DbException,
+            TransactionAbortedException {
+        TreeMap<Integer, ArrayList<Tuple>> byPage = new TreeMap<Integer, ArrayList<Tuple>>();
+        for (Tuple t : tuples)
+            byPage.computeIfAbsent(pageOf(t).getPageNumber(), k -> new ArrayList<Tuple>()).add(t);
+
+        ArrayList<Page> pages = new ArrayList<Page>(byPage.size());
+        for (Map.Entry<Integer, ArrayList<Tuple>> e : byPage.entrySet()) {
+            PageId pid = new HeapPageId(getId(), e.getKey());
+            HeapPage delPg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            for (Tuple t : e.getValue())
+                delPg.deleteTuple(t);
+            delPg.markDirty(true, tid);
+            markFree(delPg);
+            pages.add(delPg);
+        }
+        return pages;
+    }
+
+    /**
+     * @return the id of the page of this file the record id of a tuple names
+     * @throws DbException if the tuple has no record id or it names a page
+     *                     that is not in this file
+     */
+    private HeapPageId pageOf(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple has no record id");
+        PageId pid = rid.getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() < 0 || pid.getPageNumber() >= numPages())
+            throw new DbException("tuple is not a member of this file");
+        return new HeapPageId(getId(), pid.getPageNumber());
+    }
+
+    private void markFree(HeapPage pg) {
+        try {
+            freeSpace.markFree(pg.getId().getPageNumber());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
@@ -226,6 +461,15 @@ public class HeapFile implements DbFile {
         private final TransactionId tid;
         private final int numPages;
         private Iterator<Tuple> tupleIterator;
+        // the pin on the page tupleIterator reads from
+        private BufferPool.PagePin pin = null;
+
+        // read-ahead state: outstanding reads by page number, the first page
+        // number not requested yet, and the current window size in pages
+        private final HashMap<Integer, Future<?>> readAhead = new HashMap<>();
+        private int readAheadNext = 0;
+        private int window = 1;
+
         public HeapFileIterator(TransactionId tid) {
             this.tid = tid;
             numPages = numPages();
@@ -236,12 +480,72 @@ public class HeapFile implements DbFile {
             if(currentPgNo >= numPages)
                 throw new NoSuchElementException("no more pages");
             PageId pid = new HeapPageId(getId(),currentPgNo);
-            HeapPage page =  (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY); // bad design
-                                                                    // ,maybe page should has Iterator method is better
+            awaitReadAhead(pid);
+            // the current page is exhausted, unpin it first so a scan never needs two frames
+            unpinCurrentPage();
+            pin = Database.getBufferPool().pinPage(tid,pid,Permissions.READ_ONLY);
+            HeapPage page = (HeapPage) pin.getPage(); // bad design
+                                                      // ,maybe page should has Iterator method is better
             currentPgNo++;
+            issueReadAhead();
             return page.iterator();
         }
 
+        /**
+         * If the page the cursor is about to read was requested ahead of time,
+         * wait for that read instead of issuing a second one, and adapt the
+         * window: the cursor catching up with the read-ahead means it should
+         * reach further, while a page read ahead but evicted before the cursor
+         * got to it means it reaches too far.
+         */
+        private void awaitReadAhead(PageId pid) {
+            Future<?> pending = readAhead.remove(pid.getPageNumber());
+            if (pending == null)
+                return;
+            int limit = Math.min(readAheadPages, Database.getBufferPool().getCapacity() / 4);
+            if (!pending.isDone()) {
+                window = Math.min(Math.max(limit, 1), window * 2);
+                try {
+                    pending.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // getPage reads the page itself and reports the error
+                }
+            } else if (!Database.getBufferPool().isCached(pid)) {
+                window = Math.max(1, window / 2);
+            }
+        }
+
+        /** Request the pages in the window after the cursor that are not requested yet. */
+        private void issueReadAhead() {
+            BufferPool bp = Database.getBufferPool();
+            if (readAheadPages <= 0 || bp.underEvictionPressure())
+                return;
+            readAheadNext = Math.max(readAheadNext, currentPgNo);
+            int end = Math.min(numPages, currentPgNo + window);
+            for (; readAheadNext < end; readAheadNext++) {
+                PageId pid = new HeapPageId(getId(), readAheadNext);
+                if (!bp.isCached(pid))
+                    readAhead.put(readAheadNext, bp.prefetchPage(pid));
+            }
+        }
+
+        private void unpinCurrentPage() {
+            if (pin != null) {
+                pin.unpin();
+                pin = null;
+            }
+        }
+
+        private void cancelReadAhead() {
+            for (Future<?> pending : readAhead.values())
+                pending.cancel(false);
+            readAhead.clear();
+            readAheadNext = 0;
+            window = 1;
+        }
+
         /**
          * Opens the iterator
          *
@@ -249,6 +553,8 @@ public class HeapFile implements DbFile {
          */
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            cancelReadAhead();
+            unpinCurrentPage();
             currentPgNo = 0;
             tupleIterator = getNextPageTuples();
         }
@@ -266,7 +572,10 @@ public class HeapFile implements DbFile {
                 // access next page
                 tupleIterator = getNextPageTuples();
             }
-            return tupleIterator.hasNext();
+            if (tupleIterator.hasNext())
+                return true;
+            unpinCurrentPage(); // exhausted, don't hold the last page until close
+            return false;
         }
 
         /**
@@ -301,6 +610,8 @@ public class HeapFile implements DbFile {
          */
         @Override
         public void close() {
+            cancelReadAhead();
+            unpinCurrentPage();
             tupleIterator = null;
         }
     }
@@ -1,7 +1,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -9,15 +17,25 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * A text file is read in chunks of whole lines, which are parsed into
+ * records on several threads; the records are put on pages in input order
+ * and the pages written with large sequential writes.
  */
 
 public class HeapFileEncoder {
 
+  /** Number of bytes of text each parsing task gets. */
+  static final int CHUNK_BYTES = 1 << 20;
+
+  /** Number of pages written to the output file with one write. */
+  static final int WRITE_PAGES = 64;
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
    * The format of the output file will be as specified in HeapPage and
-   * HeapFile.
+   * HeapFile. The tuples are encoded straight onto pages.
    *
    * @see HeapPage
    * @see HeapFile
@@ -26,46 +44,52 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
-      for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
+      Type[] ts = new Type[numFields];
+      Arrays.fill(ts, Type.INT_TYPE);
+      try (PageWriter writer = new PageWriter(outFile, npagebytes, ts)) {
+          for (ArrayList<Integer> tuple : tuples) {
+              if (tuple.size() > numFields) {
                   throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
                           Utility.listToString(tuple) + ")");
               }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
+              if (tuple.size() < numFields) {
+                  throw new RuntimeException("Tuple has fewer than " + numFields + " fields: (" +
+                          Utility.listToString(tuple) + ")");
+              }
+              int off = writer.nextRecord();
+              for (Integer field : tuple) {
+                  writer.page.putInt(off, field);
+                  off += Type.INT_TYPE.getLen();
               }
           }
-          bw.write('\n');
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
   }
 
-      public static void convert(File inFile, File outFile, int npagebytes,
-                 int numFields) throws IOException {
+  public static void convert(File inFile, File outFile, int npagebytes,
+                             int numFields) throws IOException {
       Type[] ts = new Type[numFields];
       for (int i = 0; i < ts.length; i++) {
           ts[i] = Type.INT_TYPE;
       }
       convert(inFile,outFile,npagebytes,numFields,ts);
-      }
+  }
 
   public static void convert(File inFile, File outFile, int npagebytes,
-                 int numFields, Type[] typeAr)
+                             int numFields, Type[] typeAr)
       throws IOException {
       convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
+  public static void convert(File inFile, File outFile, int npagebytes,
+                             int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              Runtime.getRuntime().availableProcessors());
+  }
+
    /** Convert the specified input text file into a binary
     * page file. <br>
     * Assume format of the input file is (note that only integer fields are
@@ -76,7 +100,8 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile. Empty lines are skipped; an integer field that does not
+    * parse is reported and stored as 0.
     *
     * @see HeapPage
     * @see HeapFile
@@ -84,143 +109,245 @@ public class HeapFileEncoder {
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
+    * @param threads the number of threads that parse the input
     * @throws IOException if the input/output file can't be opened or a
-    *   malformed input line is encountered
+    *   line with the wrong number of fields is encountered
     */
   public static void convert(File inFile, File outFile, int npagebytes,
-                 int numFields, Type[] typeAr, char fieldSeparator)
+                             int numFields, Type[] typeAr, char fieldSeparator, int threads)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, threads, CHUNK_BYTES);
+  }
+
+  static void convert(File inFile, File outFile, int npagebytes, int numFields,
+                      Type[] typeAr, char fieldSeparator, int threads, int chunkBytes)
+      throws IOException {
+      Type[] types = Arrays.copyOf(typeAr, numFields);
+      for (Type type : types) {
+          if (!type.isFixedLength())
+              throw new IllegalArgumentException(type + " fields cannot be stored in a HeapFile");
+      }
+      ExecutorService parsers = Executors.newFixedThreadPool(threads, r -> {
+          Thread t = new Thread(r, "simpledb-encoder");
+          t.setDaemon(true);
+          return t;
+      });
+      // chunks are parsed in parallel and put on pages in order, with a
+      // bounded number in flight so the input is streamed
+      ArrayDeque<Future<Chunk>> parsed = new ArrayDeque<Future<Chunk>>();
+      try (InputStream in = new FileInputStream(inFile);
+           PageWriter writer = new PageWriter(outFile, npagebytes, types)) {
+          byte[] buf = new byte[chunkBytes];
+          int len = 0;
+          while (true) {
+              int n = in.read(buf, len, buf.length - len);
+              if (n > 0)
+                  len += n;
+              if (n > 0 && len < buf.length)
+                  continue;
+              // the chunk ends after the last complete line, unless the input did
+              int end = len;
+              if (n > 0) {
+                  while (end > 0 && buf[end - 1] != '\n')
+                      end--;
+                  if (end == 0) {
+                      // a line longer than the buffer
+                      buf = Arrays.copyOf(buf, 2 * buf.length);
+                      continue;
+                  }
+              }
+              byte[] text = Arrays.copyOf(buf, end);
+              parsed.add(parsers.submit(() -> parse(text, types, fieldSeparator)));
+              System.arraycopy(buf, end, buf, 0, len - end);
+              len -= end;
+              if (parsed.size() >= 2 * threads)
+                  parsed.remove().get().writeTo(writer);
+              if (n < 0)
+                  break;
+          }
+          while (!parsed.isEmpty())
+              parsed.remove().get().writeTo(writer);
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted during conversion");
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException)
+              throw (IOException) e.getCause();
+          if (e.getCause() instanceof RuntimeException)
+              throw (RuntimeException) e.getCause();
+          throw new IOException(e.getCause());
+      } finally {
+          parsers.shutdownNow();
+      }
+  }
+
+  /** The records encoded from a chunk of lines. */
+  private static class Chunk {
+      final byte[] records;
+      final int nrecbytes;
+
+      Chunk(byte[] records, int nrecbytes) {
+          this.records = records;
+          this.nrecbytes = nrecbytes;
+      }
+
+      void writeTo(PageWriter writer) throws IOException {
+          for (int off = 0; off < records.length; off += nrecbytes)
+              System.arraycopy(records, off, writer.page.array(), writer.nextRecord(), nrecbytes);
+      }
+  }
 
+  /** Parse whole lines of text into encoded records. */
+  private static Chunk parse(byte[] text, Type[] types, char fieldSeparator) throws IOException {
       int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+      for (Type t : types)
+          nrecbytes += t.getLen();
+      ByteBuffer records = ByteBuffer.allocate(nrecbytes * 64);
+      int pos = 0;
+      while (pos < text.length) {
+          int eol = pos;
+          while (eol < text.length && text[eol] != '\n')
+              eol++;
+          // ignore Windows/Notepad special line endings
+          int end = eol;
+          while (end > pos && text[end - 1] == '\r')
+              end--;
+          if (end > pos) {
+              if (records.remaining() < nrecbytes) {
+                  ByteBuffer bigger = ByteBuffer.allocate(2 * records.capacity());
+                  records.flip();
+                  records = bigger.put(records);
+              }
+              parseLine(text, pos, end, types, fieldSeparator, records);
+          }
+          pos = eol + 1;
+      }
+      return new Chunk(Arrays.copyOf(records.array(), records.position()), nrecbytes);
+  }
+
+  private static void parseLine(byte[] text, int start, int end, Type[] types,
+                                char fieldSeparator, ByteBuffer out) throws IOException {
+      int fieldNo = 0;
+      int from = start;
+      for (int i = start; i <= end; i++) {
+          if (i < end && text[i] != fieldSeparator)
+              continue;
+          if (fieldNo == types.length)
+              break;
+          if (types[fieldNo] == Type.INT_TYPE)
+              out.putInt(parseInt(text, from, i));
+          else if (types[fieldNo] == Type.STRING_TYPE)
+              putString(new String(text, from, i - from).trim(), out);
+          fieldNo++;
+          from = i + 1;
+      }
+      if (fieldNo != types.length || from <= end)
+          throw new IOException("expected " + types.length + " fields: " + new String(text, start, end - start));
+  }
+
+  private static int parseInt(byte[] text, int from, int to) {
+      while (from < to && (text[from] & 0xff) <= ' ')
+          from++;
+      while (to > from && (text[to - 1] & 0xff) <= ' ')
+          to--;
+      // digits with an optional minus sign fit an int if there are at most 9
+      boolean negative = from < to && text[from] == '-';
+      int digits = negative ? from + 1 : from;
+      long value = 0;
+      boolean simple = digits < to && to - digits <= 9;
+      for (int i = digits; simple && i < to; i++) {
+          if (text[i] < '0' || text[i] > '9')
+              simple = false;
+          else
+              value = value * 10 + (text[i] - '0');
+      }
+      if (simple)
+          return (int) (negative ? -value : value);
+      String s = new String(text, from, to - from);
+      try {
+          return Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+          System.out.println ("BAD LINE : " + s);
+          return 0;
+      }
+  }
+
+  private static void putString(String s, ByteBuffer out) {
+      if (s.length() > Type.STRING_LEN)
+          s = s.substring(0, Type.STRING_LEN);
+      out.putInt(s.length());
+      for (int i = 0; i < s.length(); i++)
+          out.put((byte) s.charAt(i));
+      for (int i = s.length(); i < Type.STRING_LEN; i++)
+          out.put((byte) 0);
+  }
+
+  /**
+   * Puts records on heap pages in order, and writes the pages to a file
+   * WRITE_PAGES at a time. A file without records gets one empty page.
+   */
+  private static class PageWriter implements Closeable {
+      private final FileChannel out;
+      private final int npagebytes;
+      private final int nrecbytes;
+      private final int nrecords;
+      private final int nheaderbytes;
+      /** the pages not written yet, filled with zeroes before use */
+      final ByteBuffer page;
+      private int pageNo; // within page
+      private int recordNo = 0; // on the current page
+      private int npages = 0;
+
+      PageWriter(File outFile, int npagebytes, Type[] typeAr) throws IOException {
+          int nrecbytes = 0;
+          for (Type t : typeAr)
+              nrecbytes += t.getLen();
+          this.npagebytes = npagebytes;
+          this.nrecbytes = nrecbytes;
+          // per record, we need one bit; there are nrecords per page, so we need
+          // nrecords bits, i.e., ceiling(nrecords / 8) bytes of header
+          this.nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1); //floor comes for free
+          this.nheaderbytes = (nrecords + 7) / 8;
+          this.page = ByteBuffer.allocate(WRITE_PAGES * npagebytes);
+          FreeSpaceMap.reset(outFile);
+          this.out = new FileOutputStream(outFile).getChannel();
+      }
+
+      /**
+       * Add a record to the current page, starting a new one if it is full.
+       *
+       * @return the offset in page at which the record is to be put
+       */
+      int nextRecord() throws IOException {
+          if (recordNo == nrecords) {
+              pageNo++;
+              recordNo = 0;
+              if (pageNo == WRITE_PAGES)
+                  writePages();
+          }
+          int start = pageNo * npagebytes;
+          page.put(start + recordNo / 8, (byte) (page.get(start + recordNo / 8) | (1 << (recordNo % 8))));
+          return start + nheaderbytes + nrecbytes * recordNo++;
+      }
+
+      private void writePages() throws IOException {
+          ByteBuffer pages = ByteBuffer.wrap(page.array(), 0, pageNo * npagebytes);
+          while (pages.hasRemaining())
+              out.write(pages);
+          npages += pageNo;
+          Arrays.fill(page.array(), (byte) 0);
+          pageNo = 0;
+      }
+
+      /** Write the last page, if it has records or the file would be empty. */
+      public void close() throws IOException {
+          try {
+              if (recordNo > 0 || npages + pageNo == 0)
+                  pageNo++;
+              writePages();
+          } finally {
+              out.close();
+          }
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
   }
 }
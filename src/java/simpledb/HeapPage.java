@@ -5,6 +5,7 @@ import com.sun.istack.internal.NotNull;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,18 +16,25 @@ import java.io.*;
  *
  */
 public class HeapPage implements Page {
-    private static final int byteSize = 8;
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    final int tupleSize;
+    final int headerSize; // in bytes
+    final long used[]; // header bits, slot i is used if bit i % 64 of word i / 64 is set
+    final byte data[]; // the page as read, never modified
+    final Tuple tuples[]; // decoded or inserted tuples, null if not decoded yet
     final int numSlots; // legal Slots number
 
-    byte[] oldData;
+    private byte[] image; // the page as last serialized, never modified
+    private final BitSet changedSlots; // slots inserted or deleted since image
+
+    byte[] oldData; // null while the before image is the current page
     private final Byte oldDataLock=new Byte((byte)0);
-    private Queue<Integer> emptySlots; // cache for empty slots
+    private int numEmptySlots;
+    private int freeWord; // no word of used before this has an empty slot
     private TransactionId dirty;
     private boolean isDirty;
+    private volatile long lsn = 0;
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -39,6 +47,10 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are decoded from data when they are first accessed, and
+     * their fields when those are, so data must not be modified after it
+     * is passed in.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -46,36 +58,48 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = (BufferPool.getPageSize()*8) / (this.td.getSize()* 8 + 1);
-        int headerSize = (numSlots + 7) / 8;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[headerSize];
-        emptySlots = new LinkedList<>();
+        this.tupleSize = td.getSize();
+        this.numSlots = (BufferPool.getPageSize()*8) / (tupleSize * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.data = data;
+
+        // read the header bytes into words, dropping bits past the last slot
+        used = new long[(numSlots + 63) / 64];
+        for (int i=0; i<headerSize; i++)
+            used[i >> 3] |= (data[i] & 0xFFL) << ((i & 7) * 8);
+        if (numSlots % 64 != 0)
+            used[used.length - 1] &= (1L << numSlots) - 1;
+        numEmptySlots = numSlots;
+        for (long word : used)
+            numEmptySlots -= Long.bitCount(word);
 
-        for (int i=0; i<header.length; i++)
-        {
-            header[i] = dis.readByte();
-            for(int j=0 ; j<byteSize ; ++j)
-                if(j+i*byteSize < numSlots && ((header[i]>>j) &1) ==0)// empty
-                    emptySlots.add(j+i*byteSize);
-        }
-        
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        image = data;
+        changedSlots = new BitSet(numSlots);
 
-        setBeforeImage();
+        // the bytes read are the before image until the page is committed
+        oldData = data;
         isDirty = false;
     }
 
+    /**
+     * Create a HeapPage from the page-sized region of data starting at its
+     * current position, e.g. a slice of a memory mapped HeapFile. The page
+     * is copied out of the buffer, so later writes to the file do not show
+     * through; data's position is left unchanged.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyPage(data));
+    }
+
+    private static byte[] copyPage(ByteBuffer data) {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -103,7 +127,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -113,11 +137,25 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
+
+    /**
+     * Make the current page the before image. It is only copied when the
+     * page is next modified, so pages that are not modified again never
+     * copy it.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /** Copy the before image, if it is the current page, before a change. */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null)
+                oldData = getPageData();
         }
     }
 
@@ -129,36 +167,15 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in the specified used slot, created on first access
+     *         with its fields still to be decoded from the page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    private synchronized Tuple tuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, new RecordId(pid, slotId), data, headerSize + slotId * tupleSize);
+            tuples[slotId] = t;
         }
-
         return t;
     }
 
@@ -169,69 +186,69 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page keeps the array it returned last (at first the bytes it was
+     * read from) and returns it again while no tuple is inserted or
+     * deleted; after a change only the changed slots and the header are
+     * written into a copy of it. The returned array must thus not be
+     * modified, and tuples on the page must not be modified in place.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
+    public synchronized byte[] getPageData() {
+        if (changedSlots.isEmpty())
+            return image;
+
+        byte[] page = image.clone();
+        for (int i=0; i<headerSize; i++)
+            page[i] = (byte) (used[i >> 3] >>> ((i & 7) * 8));
+        SlotOutputStream out = new SlotOutputStream(page);
+        DataOutputStream dos = new DataOutputStream(out);
+        for (int i = changedSlots.nextSetBit(0); i >= 0; i = changedSlots.nextSetBit(i + 1)) {
+            int offset = headerSize + i * tupleSize;
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(page, offset, offset + tupleSize, (byte) 0);
                 continue;
             }
 
             // non-empty slot
+            out.pos = offset;
+            Tuple t = tuples[i];
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-                
+                    t.getField(j).serialize(dos);
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
             }
         }
+        changedSlots.clear();
+        image = page;
+        return page;
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /** Writes the fields of a tuple in place into a page being patched. */
+    private static class SlotOutputStream extends OutputStream {
+        private final byte[] page;
+        int pos;
+
+        SlotOutputStream(byte[] page) {
+            this.page = page;
         }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        @Override
+        public void write(int b) {
+            page[pos++] = (byte) b;
         }
 
-        return baos.toByteArray();
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, page, pos, len);
+            pos += len;
+        }
     }
 
     /**
@@ -263,10 +280,11 @@ public class HeapPage implements Page {
         PageId pid = rid.getPageId();
         int slotIdx = rid.getTupleNumber();
 
-        if(pid.equals(this.pid) && isSlotUsed(slotIdx) && tuples[slotIdx].equals(t))
+        if(pid.equals(this.pid) && isSlotUsed(slotIdx) && tuple(slotIdx).equals(t))
         {
+            captureBeforeImage();
             markSlotUsed(slotIdx,false);
-            emptySlots.add(slotIdx);
+            slotChanged(slotIdx);
         }
         else
             throw new DbException("no this tuple");
@@ -284,11 +302,18 @@ public class HeapPage implements Page {
         // not necessary for lab1
         if(this.getNumEmptySlots()==0 || !t.getTupleDesc().equals(this.td))
             throw new DbException("not legal tuple");
-        int slot = emptySlots.remove();
+        captureBeforeImage();
+        int slot = firstEmptySlot();
         // set pid
         t.setRecordId(new RecordId(this.pid,slot));
         tuples[slot] = t;
         markSlotUsed(slot,true);
+        slotChanged(slot);
+    }
+
+    /** Record that a slot has to be written by the next getPageData. */
+    private synchronized void slotChanged(int slot) {
+        changedSlots.set(slot);
     }
 
     /**
@@ -313,12 +338,32 @@ public class HeapPage implements Page {
         else return null;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        return emptySlots.size();
+        return numEmptySlots;
+    }
+
+    /** @return the lowest empty slot, or -1 if the page is full */
+    private int firstEmptySlot() {
+        for (; freeWord < used.length; freeWord++) {
+            long empty = ~used[freeWord];
+            if (empty != 0) {
+                int slot = freeWord * 64 + Long.numberOfTrailingZeros(empty);
+                return slot < numSlots ? slot : -1;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -326,9 +371,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        int idx = i>>3;
-        int shift = i & 7;
-        return  (header[idx] & (1<<shift))!=0;
+        return (used[i >> 6] & (1L << i)) != 0;
     }
 
     /**
@@ -337,11 +380,16 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int idx = i>>3;
-        int bit = i & 0x7;
-        if(value)
-            header[idx] |= (1<<bit);
-        else header[idx] &= ~(1<<bit);
+        if (isSlotUsed(i) == value)
+            return;
+        if (value) {
+            used[i >> 6] |= 1L << i;
+            numEmptySlots--;
+        } else {
+            used[i >> 6] &= ~(1L << i);
+            numEmptySlots++;
+            freeWord = Math.min(freeWord, i >> 6);
+        }
     }
 
     /**
@@ -353,36 +401,25 @@ public class HeapPage implements Page {
         return new Itr();
     }
 
+    /** Iterates over the used slots a header word at a time. */
     private class Itr implements Iterator<Tuple>{
-        int tupleIdx =0;
-        int noItems = numSlots - getNumEmptySlots();
-        /**
-         * Returns {@code true} if the iteration has more elements.
-         * (In other words, returns {@code true} if {@link #next} would
-         * return an element rather than throwing an exception.)
-         *
-         * @return {@code true} if the iteration has more elements
-         */
+        int word = 0;
+        long bits = used.length > 0 ? used[0] : 0; // used slots of word not returned yet
+
         @Override
         public boolean hasNext() {
-            return noItems>0;
+            while (bits == 0 && ++word < used.length)
+                bits = used[word];
+            return bits != 0;
         }
 
-        /**
-         * Returns the next element in the iteration.
-         *
-         * @return the next element in the iteration
-         * @throws NoSuchElementException if the iteration has no more elements
-         */
         @Override
         public Tuple next() {
-            if(noItems==0)
+            if (!hasNext())
                 throw new NoSuchElementException();
-
-            while (tupleIdx<numSlots && !isSlotUsed(tupleIdx))
-                tupleIdx++;
-            noItems--;
-            return tuples[tupleIdx++];
+            int slot = word * 64 + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            return tuple(slot);
         }
     }
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -10,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples from which on inserts are done in bulk. */
+    static final int BULK_THRESHOLD = 4096;
+
     private OpIterator opi;
     private int tableId;
     private TransactionId tid;
@@ -73,11 +77,16 @@ public class Insert extends Operator {
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
      * duplicate before inserting it.
+     * <p>
+     * Once the child has produced BULK_THRESHOLD tuples, they are inserted
+     * in batches of that many with BufferPool.insertTuples, which lets the
+     * file write whole new pages directly.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
      * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -86,9 +95,22 @@ public class Insert extends Operator {
         try {
             int noInsert = 0;
             BufferPool bf = Database.getBufferPool();
+            ArrayList<Tuple> batch = new ArrayList<Tuple>();
+            boolean bulk = false;
             while (opi.hasNext()) {
-                bf.insertTuple(this.tid, this.tableId, opi.next());
+                batch.add(opi.next());
                 noInsert++;
+                if (batch.size() == BULK_THRESHOLD) {
+                    bf.insertTuples(this.tid, this.tableId, batch);
+                    batch.clear();
+                    bulk = true;
+                }
+            }
+            if (bulk) {
+                bf.insertTuples(this.tid, this.tableId, batch);
+            } else {
+                for (Tuple t : batch)
+                    bf.insertTuple(this.tid, this.tableId, t);
             }
             Tuple ret = new Tuple(this.getTupleDesc());
             ret.setField(0, new IntField(noInsert));
@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Evicts the least recently used page. Simple and good for workloads with
+ * recency locality, but a single large scan flushes the whole pool.
+ */
+public class LRUReplacementPolicy implements ReplacementPolicy {
+
+    // least recently used first
+    private final LinkedHashSet<PageId> order = new LinkedHashSet<>();
+
+    public void pageAdded(PageId pid) {
+        order.remove(pid);
+        order.add(pid);
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (order.remove(pid))
+            order.add(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId selectVictim(Predicate<PageId> evictable) {
+        Iterator<PageId> it = order.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public void evictionFailed(PageId pid) {
+        // back to the least recently used end; failed evictions are rare enough to copy the order
+        LinkedHashSet<PageId> rest = new LinkedHashSet<>(order);
+        order.clear();
+        order.add(pid);
+        order.addAll(rest);
+    }
+}
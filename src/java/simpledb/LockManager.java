@@ -0,0 +1,407 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager grants shared and exclusive page locks to transactions.
+ * <p>
+ * Every locked page has a lock entry with its holders and a FIFO queue of
+ * waiting requests. A request is granted when it is compatible with the
+ * holders and every request queued before it has been granted, so a stream
+ * of readers cannot starve a writer. A transaction that holds a shared lock
+ * may upgrade it to an exclusive lock; its upgrade request is queued ahead of
+ * all other waiters. Waiters block on the monitor of the lock entry and are
+ * woken when a release makes their request grantable.
+ * <p>
+ * The pages locked by each transaction are kept in a lock set, so releasing
+ * all locks of a transaction takes time proportional to the number of locks
+ * it holds.
+ * <p>
+ * Deadlocks are detected on the waits-for graph: a transaction waits for
+ * the holders of the lock it requested that are incompatible with its
+ * request, and for the incompatible requests queued before it. A request
+ * that has to wait searches the graph for a cycle through its transaction
+ * right away, and again every {@link #DETECTION_INTERVAL_MS} while it keeps
+ * waiting, which catches cycles closed by concurrent requests. The youngest
+ * transaction of a cycle is aborted with a TransactionAbortedException.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** How often a waiting request searches for deadlocks again. */
+    public static final long DETECTION_INTERVAL_MS = 20;
+
+    private static class Request {
+        final TransactionId tid;
+        final boolean exclusive;
+        boolean granted = false;
+
+        Request(TransactionId tid, boolean exclusive) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+        }
+    }
+
+    /** Lock entry of one page, guarded by its own monitor. */
+    private static class PageLock {
+        final HashSet<TransactionId> sharedHolders = new HashSet<>();
+        TransactionId exclusiveHolder = null;
+        final LinkedList<Request> waiters = new LinkedList<>();
+        // removed from the lock table, must not be used any more
+        boolean dead = false;
+
+        boolean holds(TransactionId tid, boolean exclusive) {
+            if (tid.equals(exclusiveHolder))
+                return true;
+            return !exclusive && sharedHolders.contains(tid);
+        }
+
+        boolean isFree() {
+            return exclusiveHolder == null && sharedHolders.isEmpty() && waiters.isEmpty();
+        }
+
+        private boolean compatible(Request r) {
+            if (r.exclusive)
+                return exclusiveHolder == null && (sharedHolders.isEmpty()
+                        || (sharedHolders.size() == 1 && sharedHolders.contains(r.tid)));
+            return exclusiveHolder == null || exclusiveHolder.equals(r.tid);
+        }
+
+        /** Grant queued requests in FIFO order, up to the first incompatible one. */
+        void grantWaiters() {
+            boolean granted = false;
+            while (!waiters.isEmpty() && compatible(waiters.getFirst())) {
+                Request r = waiters.removeFirst();
+                if (r.exclusive) {
+                    sharedHolders.remove(r.tid);
+                    exclusiveHolder = r.tid;
+                } else {
+                    sharedHolders.add(r.tid);
+                }
+                r.granted = true;
+                granted = true;
+            }
+            if (granted)
+                notifyAll();
+        }
+
+        private static boolean conflicts(Request a, Request b) {
+            return !a.tid.equals(b.tid) && (a.exclusive || b.exclusive);
+        }
+
+        /** Add the transactions that the waiting requests of tid wait for to blockers. */
+        void addBlockers(TransactionId tid, Set<TransactionId> blockers) {
+            int pos = 0;
+            for (Request r : waiters) {
+                if (r.tid.equals(tid)) {
+                    if (exclusiveHolder != null && !exclusiveHolder.equals(tid))
+                        blockers.add(exclusiveHolder);
+                    if (r.exclusive)
+                        for (TransactionId holder : sharedHolders)
+                            if (!holder.equals(tid))
+                                blockers.add(holder);
+                    // FIFO: conflicting requests queued ahead are granted first
+                    for (Request ahead : waiters.subList(0, pos))
+                        if (conflicts(ahead, r))
+                            blockers.add(ahead.tid);
+                }
+                pos++;
+            }
+        }
+
+        void release(TransactionId tid) {
+            if (tid.equals(exclusiveHolder))
+                exclusiveHolder = null;
+            sharedHolders.remove(tid);
+            waiters.removeIf(r -> r.tid.equals(tid));
+            grantWaiters();
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> lockTable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockSets = new ConcurrentHashMap<>();
+
+    // waits-for graph: the lock entries each transaction has requests queued on
+    private final ConcurrentHashMap<TransactionId, Set<PageLock>> waitingOn = new ConcurrentHashMap<>();
+    // when each waiting transaction started its current wait, in System.nanoTime()
+    private final ConcurrentHashMap<TransactionId, Long> blockedSince = new ConcurrentHashMap<>();
+    // transactions chosen as deadlock victims that have not noticed yet
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+    // serializes deadlock searches, taken before any lock entry monitor
+    private final Object detector = new Object();
+
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong totalDetectionNanos = new AtomicLong();
+    private final AtomicLong maxDetectionNanos = new AtomicLong();
+
+    /**
+     * Acquire a lock on the specified page, blocking until it is granted.
+     * READ_ONLY requests a shared lock and READ_WRITE an exclusive lock; a
+     * shared lock already held by the transaction is upgraded.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *         victim of a deadlock, or the waiting thread is interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        PageLock lock;
+        Request r;
+        while (true) {
+            lock = lockTable.computeIfAbsent(pid, k -> new PageLock());
+            synchronized (lock) {
+                if (lock.dead)
+                    continue; // freed concurrently, look it up again
+                if (lock.holds(tid, exclusive))
+                    return;
+                // register before the lock can be granted, so releaseAll finds it
+                lockSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                r = new Request(tid, exclusive);
+                if (exclusive && lock.sharedHolders.contains(tid))
+                    lock.waiters.addFirst(r); // upgrade
+                else
+                    lock.waiters.addLast(r);
+                lock.grantWaiters();
+                if (r.granted)
+                    return;
+                break;
+            }
+        }
+
+        waitingOn.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(lock);
+        blockedSince.putIfAbsent(tid, System.nanoTime());
+        try {
+            awaitGrant(tid, pid, lock, r);
+        } finally {
+            Set<PageLock> waits = waitingOn.get(tid);
+            if (waits != null) {
+                waits.remove(lock);
+                if (waits.isEmpty()) {
+                    waitingOn.remove(tid, waits);
+                    blockedSince.remove(tid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a queued request, searching for deadlocks before every wait.
+     * The search runs without holding any lock entry monitor.
+     */
+    private void awaitGrant(TransactionId tid, PageId pid, PageLock lock, Request r)
+            throws TransactionAbortedException {
+        try {
+            while (true) {
+                detectDeadlock(tid);
+                synchronized (lock) {
+                    if (!r.granted && !victims.contains(tid))
+                        lock.wait(DETECTION_INTERVAL_MS);
+                    if (r.granted)
+                        return;
+                    if (victims.contains(tid))
+                        throw new TransactionAbortedException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            if (!r.granted)
+                cancelRequest(tid, pid, lock, r);
+            // only now is the cycle broken up; a victim flag set after a grant is stale
+            victims.remove(tid);
+        }
+    }
+
+    private void cancelRequest(TransactionId tid, PageId pid, PageLock lock, Request r) {
+        synchronized (lock) {
+            lock.waiters.remove(r);
+            // requests queued behind this one may be grantable now
+            lock.grantWaiters();
+            Set<PageId> lockSet = lockSets.get(tid);
+            if (lockSet != null && !lock.holds(tid, false)) {
+                lockSet.remove(pid);
+                if (lock.isFree() && !lock.dead) {
+                    lock.dead = true;
+                    lockTable.remove(pid, lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Search the waits-for graph for a cycle through the specified waiting
+     * transaction and pick the youngest transaction on it as victim. The
+     * victim is flagged until its request is cancelled, so the cycle is not
+     * reported again meanwhile, and woken up so that it aborts itself.
+     */
+    private void detectDeadlock(TransactionId tid) {
+        synchronized (detector) {
+            ArrayList<TransactionId> cycle = new ArrayList<>();
+            HashSet<TransactionId> visited = new HashSet<>();
+            visited.add(tid);
+            if (!findCycle(tid, tid, visited, cycle))
+                return;
+
+            TransactionId victim = tid;
+            long formed = Long.MIN_VALUE;
+            for (TransactionId t : cycle) {
+                if (victims.contains(t))
+                    return; // already being broken up
+                if (t.getId() > victim.getId())
+                    victim = t;
+                Long since = blockedSince.get(t);
+                if (since != null)
+                    formed = Math.max(formed, since);
+            }
+            // the cycle exists since its last member started waiting
+            long latency = formed == Long.MIN_VALUE ? 0 : System.nanoTime() - formed;
+            deadlocks.incrementAndGet();
+            totalDetectionNanos.addAndGet(latency);
+            maxDetectionNanos.accumulateAndGet(latency, Math::max);
+
+            victims.add(victim);
+            if (!victim.equals(tid)) {
+                Set<PageLock> waits = waitingOn.get(victim);
+                if (waits != null)
+                    for (PageLock lock : waits)
+                        synchronized (lock) {
+                            lock.notifyAll();
+                        }
+            }
+        }
+    }
+
+    /**
+     * Depth first search for a path from t back to start. On success, path
+     * holds the transactions of the cycle.
+     */
+    private boolean findCycle(TransactionId t, TransactionId start,
+                              HashSet<TransactionId> visited, ArrayList<TransactionId> path) {
+        path.add(t);
+        HashSet<TransactionId> blockers = new HashSet<>();
+        Set<PageLock> waits = waitingOn.get(t);
+        if (waits != null) {
+            for (PageLock lock : waits) {
+                synchronized (lock) {
+                    lock.addBlockers(t, blockers);
+                }
+            }
+        }
+        for (TransactionId b : blockers) {
+            if (b.equals(start))
+                return true;
+            if (visited.add(b) && findCycle(b, start, visited, path))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /** @return the number of deadlocks detected so far */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * @return the average time between a deadlock forming, i.e. the last
+     *         transaction of the cycle starting to wait, and its detection,
+     *         in nanoseconds; 0 if none was detected
+     */
+    public long getAverageDetectionNanos() {
+        long n = deadlocks.get();
+        return n == 0 ? 0 : totalDetectionNanos.get() / n;
+    }
+
+    /** @return the longest time a deadlock went undetected, in nanoseconds */
+    public long getMaxDetectionNanos() {
+        return maxDetectionNanos.get();
+    }
+
+    /** @return true if the transaction holds a shared or exclusive lock on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        PageLock lock = lockTable.get(pid);
+        if (lock == null)
+            return false;
+        synchronized (lock) {
+            return lock.holds(tid, false);
+        }
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        PageLock lock = lockTable.get(pid);
+        if (lock == null)
+            return false;
+        synchronized (lock) {
+            return lock.holds(tid, true);
+        }
+    }
+
+    /** @return the transaction holding an exclusive lock on the page, or null */
+    public TransactionId getExclusiveHolder(PageId pid) {
+        PageLock lock = lockTable.get(pid);
+        if (lock == null)
+            return null;
+        synchronized (lock) {
+            return lock.exclusiveHolder;
+        }
+    }
+
+    /** Release the lock of the transaction on the specified page, if any. */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> lockSet = lockSets.get(tid);
+        if (lockSet != null)
+            lockSet.remove(pid);
+        releaseEntry(tid, pid);
+    }
+
+    private void releaseEntry(TransactionId tid, PageId pid) {
+        PageLock lock = lockTable.get(pid);
+        if (lock == null)
+            return;
+        synchronized (lock) {
+            lock.release(tid);
+            if (lock.isFree() && !lock.dead) {
+                lock.dead = true;
+                lockTable.remove(pid, lock);
+            }
+        }
+    }
+
+    /** Release all locks held or requested by the transaction. */
+    public void releaseAll(TransactionId tid) {
+        victims.remove(tid);
+        Set<PageId> lockSet = lockSets.remove(tid);
+        if (lockSet == null)
+            return;
+        for (PageId pid : lockSet)
+            releaseEntry(tid, pid);
+    }
+
+    /**
+     * @return the pages the transaction holds (or is waiting for) a lock on
+     */
+    public Collection<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> lockSet = lockSets.get(tid);
+        return lockSet == null ? new ArrayList<>() : new ArrayList<>(lockSet);
+    }
+
+    /**
+     * @return the pages the transaction holds an exclusive lock on
+     */
+    public Collection<PageId> getExclusivelyLockedPages(TransactionId tid) {
+        ArrayList<PageId> pages = new ArrayList<>();
+        for (PageId pid : getLockedPages(tid))
+            if (holdsExclusiveLock(tid, pid))
+                pages.add(pid);
+        return pages;
+    }
+}
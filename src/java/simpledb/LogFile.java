@@ -3,7 +3,17 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +25,14 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening).  BufferPool writes log records (when pages are
+flushed) and the log file reads, writes and discards BufferPool pages
+(on checkpoints, rollback and recovery), so the two must take their locks
+in one order: the log monitor first, then BufferPool's eviction lock or a
+frame latch.  LogFile methods may therefore call into the BufferPool while
+holding the monitor, and BufferPool never waits for the log monitor while
+it holds its eviction lock or a frame latch; it writes log records for a
+page before latching the frame to write the page out.
 */
 
 /**
@@ -40,7 +41,10 @@ must not be declared synchronized and must begin with a block like:
 <ul>
 
 <li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+last written checkpoint, or -1 if there are no checkpoints. The second
+long integer is the log sequence number (LSN) of file offset 0: the LSN
+of a record is this number plus the offset of the record, so LSNs keep
+increasing when the log is truncated or thrown away.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
@@ -51,21 +55,33 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+accessed with the LogFile.readPageData() and LogFile.EncodedPage
+methods.  A serialized page starts with a byte tag for the page class
+(0 if the class has no tag, followed by the page and page id class
+names), then the number of page id integers as a byte, the integers,
+and the length of the page data followed by the data.
+
+<li>DELTA RECORDS describe the same change as an UPDATE record, but only
+hold the page class and id, followed by the byte ranges in which the
+before and after images differ (see PageDelta). logWrite uses them
+whenever they are smaller than the two images, which for a tuple insert
+or delete is a few dozen bytes instead of two pages.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction. The dirty-page table follows: an integer
+count of pages, and for each page its class and id as in a DELTA record
+and a long integer recLSN, the LSN of the first record describing a
+change of the page that may not be on disk.
 
 </ul>
 
@@ -75,6 +91,8 @@ public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
+    // appends records at the end of raf, protected by this
+    private LogWriter writer;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +100,53 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    // type, tid and start offset of a record
+    final static int RECORD_OVERHEAD = INT_SIZE + 2 * LONG_SIZE;
+
+    // tags of page classes in update records, see EncodedPage. the page id
+    // class follows from the page class
+    static final byte UNTAGGED_PAGE = 0;
+    private static final Class<?>[] PAGE_CLASSES = {
+        null, HeapPage.class, BTreeLeafPage.class, BTreeInternalPage.class,
+        BTreeHeaderPage.class, BTreeRootPtrPage.class, SlottedPage.class };
+    private static final Class<?>[] PAGE_ID_CLASSES = {
+        null, HeapPageId.class, BTreePageId.class, BTreePageId.class,
+        BTreePageId.class, BTreePageId.class, HeapPageId.class };
 
     long currentOffset = -1;//protected by this
+    long baseLsn = 0; // LSN of file offset 0, protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // group commit: commits are numbered in log order, and a flusher thread
+    // forces the log once for a batch of them. see enableGroupCommit
+    private long commitsLogged = 0; // protected by this
+    private final Object commitLock = new Object(); // taken after this, never before
+    private Thread flusher; // protected by commitLock, null if group commit is off
+    private long maxCommitDelayNanos; // protected by commitLock
+    private int maxCommitBatch; // protected by commitLock
+    private long commitsDurable = 0; // protected by commitLock
+    private long commitsRequested = 0; // latest commit waiting for the flusher, protected by commitLock
+    private long oldestWaiterSince; // protected by commitLock
+    private IOException flushError; // stopped the flusher, protected by commitLock
+    private final AtomicLong forces = new AtomicLong();
+    // end of the part of the log known to be on disk
+    private final AtomicLong flushedLsn = new AtomicLong();
+    // threads that redo pages in parallel during recovery
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private volatile long redoneRecords = 0;
+    private volatile long checkpointPauseNanos = 0;
+    // serializes log truncation and recovery, taken before this, never after
+    private final Object truncateLock = new Object();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,6 +162,11 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            baseLsn = raf.readLong();
+        }
+        writer = new LogWriter(raf.getChannel(), raf.length());
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,14 +186,83 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
+            // LSNs continue after the end of the thrown out log
+            long endLsn = baseLsn + Math.max(raf.length(), HEADER_SIZE);
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            baseLsn = endLsn - HEADER_SIZE;
+            writeHeader(NO_CHECKPOINT_ID);
             currentOffset = raf.getFilePointer();
+            writer.reset(currentOffset);
+        }
+    }
+
+    private void writeHeader(long checkpointOffset) throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpointOffset);
+        raf.writeLong(baseLsn);
+    }
+
+    /** Start appending a record with the specified payload size.
+        @return the buffer to put the payload into */
+    private ByteBuffer beginRecord(int type, long tid, int payloadSize) throws IOException {
+        ByteBuffer buf = writer.reserve(RECORD_OVERHEAD + payloadSize);
+        return buf.putInt(type).putLong(tid);
+    }
+
+    /** Finish the record started at currentOffset.
+        @return the LSN of the record */
+    private long endRecord(ByteBuffer buf) {
+        buf.putLong(currentOffset);
+        long lsn = baseLsn + currentOffset;
+        currentOffset = writer.offset();
+        return lsn;
+    }
+
+    /** Set the number of threads that redo pages during recovery.
+        Records of the same page are always redone in log order by one
+        thread. */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one recovery thread");
+        recoveryThreads = threads;
+    }
+
+    /** @return the number of update records the last recovery redid, which
+        leaves out those of pages that were on disk at the checkpoint */
+    public long getRedoneRecords() {
+        return redoneRecords;
+    }
+
+    /** @return the LSN the next log record gets */
+    public synchronized long getNextLsn() {
+        return baseLsn + writer.offset();
+    }
+
+    /** @return the LSN up to which the log is known to be on disk; records
+        with a lower LSN are durable */
+    public long getFlushedLsn() {
+        return flushedLsn.get();
+    }
+
+    /** Force the log to disk, unless the record with the specified LSN is
+        on disk already. Pages call this with their LSN before they are
+        written out, which only forces the log if their latest record was
+        not forced yet (by a commit, say). */
+    public void force(long lsn) throws IOException {
+        if (lsn < flushedLsn.get())
+            return;
+        synchronized (this) {
+            if (lsn < flushedLsn.get())
+                return;
+            force();
         }
     }
 
+    /** @return the number of writes of buffered records to the log file */
+    public synchronized long getWriteCount() {
+        return writer.getWriteCount();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -142,48 +270,205 @@ public class LogFile {
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
+        @return the LSN of the abort record
+    */
+    public long logAbort(TransactionId tid) throws IOException {
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            long lsn = endRecord(beginRecord(ABORT_RECORD, tid.getId(), 0));
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            return lsn;
+        }
+    }
+
+    /** Write a commit record to disk for the specified tid,
+        and force the log to disk. With group commit, returns once the
+        flusher thread has forced the log past the commit record.
+
+        @param tid The committing transaction.
+        @return the LSN of the commit record
     */
-    public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+    public long logCommit(TransactionId tid) throws IOException {
+        long commitNo, lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = endRecord(beginRecord(COMMIT_RECORD, tid.getId(), 0));
+            tidToFirstLogRecord.remove(tid.getId());
+            commitNo = ++commitsLogged;
+        }
+        awaitDurable(commitNo);
+        return lsn;
+    }
 
-        synchronized (Database.getBufferPool()) {
+    /**
+     * Turn on group commit: committing transactions no longer force the log
+     * themselves, but wait for a flusher thread that forces it once for all
+     * commits logged so far. The flusher forces as soon as maxBatchSize
+     * commits are waiting, or when the oldest waiting commit has waited for
+     * maxDelayMicros. May be called again to change the parameters.
+     *
+     * @param maxDelayMicros how long a commit may wait for others to join its batch
+     * @param maxBatchSize number of waiting commits that are forced right away
+     */
+    public void enableGroupCommit(long maxDelayMicros, int maxBatchSize) {
+        if (maxDelayMicros < 0 || maxBatchSize < 1)
+            throw new IllegalArgumentException("invalid group commit parameters");
+        synchronized (commitLock) {
+            maxCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+            maxCommitBatch = maxBatchSize;
+            if (flusher == null) {
+                flushError = null;
+                flusher = new Thread(this::flushCommits, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            commitLock.notifyAll();
+        }
+    }
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+    /** Turn off group commit; each commit forces the log again. */
+    public void disableGroupCommit() {
+        synchronized (commitLock) {
+            flusher = null; // the flusher exits, waiting commits force the log themselves
+            commitLock.notifyAll();
+        }
+    }
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+    public boolean isGroupCommit() {
+        synchronized (commitLock) {
+            return flusher != null;
+        }
+    }
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * @return the error that turned group commit off because the flusher
+     *         could not force the log, or null. Cleared when group commit is
+     *         turned on again.
+     */
+    public IOException getGroupCommitError() {
+        synchronized (commitLock) {
+            return flushError;
+        }
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    /** Block until the specified commit is on disk, forcing the log unless
+        the flusher thread does. Must not be called holding this. */
+    private void awaitDurable(long commitNo) throws IOException {
+        synchronized (commitLock) {
+            if (commitsDurable >= commitNo)
+                return;
+            if (flusher != null) {
+                if (commitsRequested <= commitsDurable)
+                    oldestWaiterSince = System.nanoTime(); // first of a new batch
+                commitsRequested = Math.max(commitsRequested, commitNo);
+                commitLock.notifyAll();
+                boolean interrupted = false;
+                while (commitsDurable < commitNo && flusher != null) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                if (commitsDurable >= commitNo)
+                    return;
             }
         }
+        force(); // group commit is off, or was turned off while we waited
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** Body of the flusher thread. */
+    private void flushCommits() {
+        Thread me = Thread.currentThread();
+        while (true) {
+            synchronized (commitLock) {
+                try {
+                    while (flusher == me && commitsRequested <= commitsDurable)
+                        commitLock.wait();
+                    // give other transactions a chance to join the batch
+                    long now;
+                    while (flusher == me && commitsRequested - commitsDurable < maxCommitBatch
+                           && (now = System.nanoTime()) - oldestWaiterSince < maxCommitDelayNanos)
+                        TimeUnit.NANOSECONDS.timedWait(commitLock,
+                                                       oldestWaiterSince + maxCommitDelayNanos - now);
+                } catch (InterruptedException e) {
+                    // only stops when group commit is turned off
+                }
+                if (flusher != me)
+                    return;
+            }
+            try {
+                forceForCommits();
+            } catch (IOException e) {
+                // turn group commit off: the waiting commits force the log
+                // themselves and each get the error if the disk still fails
+                synchronized (commitLock) {
+                    if (flusher == me) {
+                        flusher = null;
+                        flushError = e;
+                    }
+                    commitLock.notifyAll();
+                }
+                Debug.log("log flusher stopped: %s", e);
+                return;
+            }
+        }
+    }
 
-        @param tid The committing transaction.
-    */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    /** Force the log without holding this, so transactions keep appending
+        records while the disk is busy. */
+    private void forceForCommits() throws IOException {
+        while (true) {
+            FileChannel channel;
+            long logged, lsn;
+            synchronized (this) {
+                writer.flush();
+                channel = raf.getChannel();
+                logged = commitsLogged;
+                lsn = baseLsn + writer.flushedOffset();
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (raf.getChannel() == channel)
+                        throw e; // shut down
+                }
+                continue; // logTruncate replaced the file, force the new one
+            }
+            forces.incrementAndGet();
+            flushedLsn.accumulateAndGet(lsn, Math::max);
+            commitsForced(logged);
+            return;
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Release the commits up to the specified one, which are on disk now. */
+    private void commitsForced(long logged) {
+        synchronized (commitLock) {
+            if (logged > commitsDurable)
+                commitsDurable = logged;
+            oldestWaiterSince = System.nanoTime(); // the remaining waiters missed this batch
+            commitLock.notifyAll();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,92 +477,150 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the update record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           before page data (see EncodedPage)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           a delta record has the page class and id and a PageDelta instead
+        */
+        byte[] beforeBytes = before.getPageData();
+        byte[] afterBytes = after.getPageData();
+        ByteBuffer buf = null;
+        if (beforeBytes.length == afterBytes.length) {
+            PageDelta delta = PageDelta.diff(beforeBytes, afterBytes);
+            EncodedPage ref = new EncodedPage(after.getClass(), after.getId(), null);
+            if (delta.size() < beforeBytes.length + afterBytes.length) {
+                buf = beginRecord(DELTA_RECORD, tid.getId(), ref.size() + delta.size());
+                ref.put(buf);
+                delta.put(buf);
+            }
+        }
+        if (buf == null) {
+            EncodedPage beforeData = new EncodedPage(before.getClass(), before.getId(), beforeBytes);
+            EncodedPage afterData = new EncodedPage(after.getClass(), after.getId(), afterBytes);
+            buf = beginRecord(UPDATE_RECORD, tid.getId(),
+                              beforeData.size() + afterData.size());
+            beforeData.put(buf);
+            afterData.put(buf);
+        }
+        long lsn = endRecord(buf);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** A page serialized for an update record, or only its class and id
+        for a delta record. */
+    static class EncodedPage {
+        private final byte tag;
+        private final byte[] pageClassName, idClassName; // only if untagged
+        private final int[] pageInfo;
+        private final byte[] pageData; // null if only the id is encoded
+
+        EncodedPage(Page p) {
+            this(p.getClass(), p.getId(), p.getPageData());
+        }
+
+        EncodedPage(Class<?> pageClass, PageId pid, byte[] pageData) {
+            pageInfo = pid.serialize();
+            this.pageData = pageData;
+            byte t = UNTAGGED_PAGE;
+            for (int i = 1; i < PAGE_CLASSES.length; i++) {
+                if (PAGE_CLASSES[i] == pageClass && PAGE_ID_CLASSES[i] == pid.getClass())
+                    t = (byte) i;
+            }
+            tag = t;
+            if (tag == UNTAGGED_PAGE) {
+                pageClassName = pageClass.getName().getBytes(StandardCharsets.UTF_8);
+                idClassName = pid.getClass().getName().getBytes(StandardCharsets.UTF_8);
+            } else {
+                pageClassName = idClassName = null;
+            }
+        }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        /** @return the number of bytes put by put() */
+        int size() {
+            int size = 2 + pageInfo.length * INT_SIZE;
+            if (pageData != null)
+                size += INT_SIZE + pageData.length;
+            if (tag == UNTAGGED_PAGE)
+                size += 2 + pageClassName.length + 2 + idClassName.length;
+            return size;
+        }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        void put(ByteBuffer buf) {
+            buf.put(tag);
+            if (tag == UNTAGGED_PAGE) {
+                // readable with DataInput.readUTF, class names are ASCII
+                buf.putShort((short) pageClassName.length).put(pageClassName);
+                buf.putShort((short) idClassName.length).put(idClassName);
+            }
+            buf.put((byte) pageInfo.length);
+            for (int i : pageInfo)
+                buf.putInt(i);
+            if (pageData != null) {
+                buf.putInt(pageData.length);
+                buf.put(pageData);
+            }
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** The class and id of a page in an update or delta record. */
+    static class PageRef {
+        final Class<?> pageClass;
+        final PageId pid;
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        PageRef(Class<?> pageClass, PageId pid) {
+            this.pageClass = pageClass;
+            this.pid = pid;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    static Page readPageData(RandomAccessFile raf) throws IOException {
+        PageRef ref = readPageRef(raf);
+        int pageSize = raf.readInt();
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+        return newPage(ref.pageClass, ref.pid, pageData);
+    }
+
+    static PageRef readPageRef(RandomAccessFile raf) throws IOException {
+        PageId pid;
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+            Class<?> idClass;
+            Class<?> pageClass;
+            int tag = raf.readByte();
+            if (tag == UNTAGGED_PAGE) {
+                pageClass = Class.forName(raf.readUTF());
+                idClass = Class.forName(raf.readUTF());
+            } else if (tag > 0 && tag < PAGE_CLASSES.length) {
+                pageClass = PAGE_CLASSES[tag];
+                idClass = PAGE_ID_CLASSES[tag];
+            } else {
+                throw new IOException("unknown page tag " + tag + " in log");
+            }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = raf.readByte();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            pid = (PageId)idConstructor(idClass).newInstance(idArgs);
+            return new PageRef(pageClass, pid);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -291,15 +634,60 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
+
+    static Page newPage(Class<?> pageClass, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Page newPage = (Page)pageConstructor(pageClass).newInstance(pid, pageData);
+            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return newPage;
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    // constructors looked up by readPageData, by page and page id class
+    private static final Map<Class<?>, Constructor<?>> constructors =
+        new java.util.concurrent.ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private static Constructor<?> idConstructor(Class<?> idClass) {
+        Constructor<?> c = constructors.get(idClass);
+        if (c == null) {
+            c = idClass.getDeclaredConstructors()[0];
+            constructors.put(idClass, c);
+        }
+        return c;
+    }
 
+    /** Find the Page(PageId id, byte[] data) constructor of a page class;
+        page classes may declare other constructors as well. */
+    private static Constructor<?> pageConstructor(Class<?> pageClass) throws IOException {
+        Constructor<?> cached = constructors.get(pageClass);
+        if (cached != null)
+            return cached;
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && params[1] == byte[].class) {
+                constructors.put(pageClass, c);
+                return c;
+            }
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
+        @return the LSN of the begin record
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public synchronized long logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,150 +695,271 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = endRecord(beginRecord(BEGIN_RECORD, tid.getId(), 0));
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record. The checkpoint
+        is fuzzy: instead of writing the dirty pages, it records them with
+        their recLSN, so transactions only wait while the record is built,
+        and while the log truncation that follows finds where to cut the
+        log and switches files. Pages are written by eviction, commits
+        under FORCE, or the buffer pool's trickle writer. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long pause;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            long pauseStart = System.nanoTime();
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = currentOffset;
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPages();
+            ArrayList<EncodedPage> dirtyIds = new ArrayList<EncodedPage>();
+            int dirtySize = 0;
+            for (PageId pid : dirtyPages.keySet()) {
+                Page p = Database.getBufferPool().peekPage(pid);
+                EncodedPage id = new EncodedPage(p == null ? Page.class : p.getClass(), pid, null);
+                dirtyIds.add(id);
+                dirtySize += id.size() + LONG_SIZE;
+            }
+            ByteBuffer buf = beginRecord(CHECKPOINT_RECORD, -1, //no tid , but leave space for convenience
+                                         INT_SIZE + keys.size() * 2 * LONG_SIZE
+                                         + INT_SIZE + dirtySize);
+
+            //write list of outstanding transactions
+            buf.putInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                buf.putLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                buf.putLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty-page table, with the recLSN of each page
+            buf.putInt(dirtyIds.size());
+            Iterator<Long> recLsns = dirtyPages.values().iterator();
+            for (EncodedPage id : dirtyIds) {
+                id.put(buf);
+                buf.putLong(recLsns.next());
             }
+            endRecord(buf);
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            writer.flush();
+            writeHeader(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
+            pause = System.nanoTime() - pauseStart;
         }
 
-        logTruncate();
+        checkpointPauseNanos = pause + truncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+    /** @return how long the last checkpoint held up logging, in nanoseconds,
+        including the parts of the log truncation that hold the log monitor */
+    public long getCheckpointPauseNanos() {
+        return checkpointPauseNanos;
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption. The records still needed are copied to a new file
+        without holding the log monitor, so transactions keep logging
+        meanwhile; the monitor is only held to find where the log may be
+        cut, and to copy the records appended during the copy and switch
+        to the new file. */
+    public void logTruncate() throws IOException {
+        truncate();
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Truncate the log, see logTruncate.
+        @return how long the log monitor was held, in nanoseconds */
+    private long truncate() throws IOException {
+        synchronized (truncateLock) {
+            long minLogRecord, copied;
+            long pauseStart = System.nanoTime();
+            synchronized (this) {
+                preAppend();
+                writer.flush();
+                minLogRecord = firstNeededOffset();
+                copied = currentOffset;
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+            long pause = System.nanoTime() - pauseStart;
+            if (minLogRecord <= HEADER_SIZE)
+                return pause; // nothing to cut
+
+            // we can truncate everything before minLogRecord; records only
+            // move, so every offset in the new file is shift lower
+            long shift = minLogRecord - HEADER_SIZE;
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
+            LogWriter newWriter = new LogWriter(logNew.getChannel(), HEADER_SIZE);
+            RandomAccessFile in = new RandomAccessFile(logFile, "r");
+            try {
+                copyRecords(in, minLogRecord, copied, newWriter, shift);
+                newWriter.flush();
+                logNew.getChannel().force(true);
+
+                pauseStart = System.nanoTime();
+                synchronized (this) {
+                    // the records appended meanwhile, and the latest checkpoint pointer
+                    writer.flush();
+                    copyRecords(in, copied, currentOffset, newWriter, shift);
+                    newWriter.flush();
+                    raf.seek(0);
+                    long cpLoc = raf.readLong();
+                    long newBaseLsn = baseLsn + shift;
+                    logNew.seek(0);
+                    logNew.writeLong(cpLoc - shift);
+                    logNew.writeLong(newBaseLsn);
+                    logNew.getChannel().force(true);
+                    logNew.close();
+                    in.close();
+
+                    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+
+                    raf.close();
+                    logFile.delete();
+                    newFile.renameTo(logFile);
+                    raf = new RandomAccessFile(logFile, "rw");
+                    raf.seek(raf.length());
+                    newFile.delete();
+
+                    baseLsn = newBaseLsn;
+                    currentOffset = raf.getFilePointer();
+                    writer = new LogWriter(raf.getChannel(), currentOffset);
+                    for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet())
+                        e.setValue(e.getValue() - shift);
                 }
+                return pause + System.nanoTime() - pauseStart;
+            } finally {
+                in.close();
+                logNew.close();
+                newFile.delete();
             }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** @return the offset of the first record recovery or rollback may
+        still need: the start of the last checkpoint, of the transactions
+        active at it, or of the oldest change of a page dirty at it.
+        HEADER_SIZE if there is no checkpoint. Caller holds this. */
+    private long firstNeededOffset() throws IOException {
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return HEADER_SIZE;
 
-        raf.seek(minLogRecord);
+        long minLogRecord = cpLoc;
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-                Debug.log("NEW START = " + newStart);
+        int numOutstanding = raf.readInt();
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = raf.readLong();
+            long firstLogRecord = raf.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
+            }
+        }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        // redo starts at the oldest change of a dirty page
+        int numDirty = raf.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageRef(raf);
+            long recOffset = raf.readLong() - baseLsn;
+            if (recOffset < minLogRecord)
+                minLogRecord = Math.max(recOffset, HEADER_SIZE);
+        }
+        return minLogRecord;
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+    /** Copy the records between the specified offsets of in to out,
+        rewriting the offsets they contain as shift lower. */
+    private static void copyRecords(RandomAccessFile in, long from, long to, LogWriter out, long shift)
+        throws IOException {
+        in.seek(from);
+        //have to rewrite log records since offsets are different after truncation
+        while (in.getFilePointer() < to) {
+            int type = in.readInt();
+            long record_tid = in.readLong();
+            long newStart = out.offset();
+            ByteBuffer buf;
+
+            Debug.log("NEW START = " + newStart);
+
+            switch (type) {
+            case UPDATE_RECORD:
+                EncodedPage before = new EncodedPage(readPageData(in));
+                EncodedPage after = new EncodedPage(readPageData(in));
+
+                buf = out.reserve(RECORD_OVERHEAD + before.size() + after.size());
+                buf.putInt(type).putLong(record_tid);
+                before.put(buf);
+                after.put(buf);
+                break;
+            case DELTA_RECORD:
+                PageRef ref = readPageRef(in);
+                EncodedPage id = new EncodedPage(ref.pageClass, ref.pid, null);
+                PageDelta delta = PageDelta.read(in);
+
+                buf = out.reserve(RECORD_OVERHEAD + id.size() + delta.size());
+                buf.putInt(type).putLong(record_tid);
+                id.put(buf);
+                delta.put(buf);
+                break;
+            case CHECKPOINT_RECORD:
+                long[] xactions = new long[2 * in.readInt()];
+                for (int i = 0; i < xactions.length; i++)
+                    xactions[i] = in.readLong();
+                // recLSNs stay valid, records keep their LSN
+                int numDirty = in.readInt();
+                EncodedPage[] dirtyIds = new EncodedPage[numDirty];
+                long[] recLsns = new long[numDirty];
+                int dirtySize = 0;
+                for (int i = 0; i < numDirty; i++) {
+                    PageRef dirty = readPageRef(in);
+                    dirtyIds[i] = new EncodedPage(dirty.pageClass, dirty.pid, null);
+                    recLsns[i] = in.readLong();
+                    dirtySize += dirtyIds[i].size() + LONG_SIZE;
                 }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+                buf = out.reserve(RECORD_OVERHEAD + INT_SIZE + xactions.length * LONG_SIZE
+                                        + INT_SIZE + dirtySize);
+                buf.putInt(type).putLong(record_tid).putInt(xactions.length / 2);
+                for (int i = 0; i < xactions.length; i += 2) {
+                    buf.putLong(xactions[i]);
+                    buf.putLong(xactions[i + 1] - shift);
+                }
+                buf.putInt(numDirty);
+                for (int i = 0; i < numDirty; i++) {
+                    dirtyIds[i].put(buf);
+                    buf.putLong(recLsns[i]);
+                }
+                break;
+            default:
+                buf = out.reserve(RECORD_OVERHEAD);
+                buf.putInt(type).putLong(record_tid);
                 break;
             }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
 
-        currentOffset = raf.getFilePointer();
-        //print();
+            //all xactions finish with a pointer
+            buf.putLong(newStart);
+            in.readLong();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,11 +972,171 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        synchronized(this) {
+            preAppend();
+            // some code goes here
+            Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+            if (firstRecord == null)
+                throw new NoSuchElementException("transaction " + tid.getId() + " has no log records");
+
+            // log the changes that were not logged yet, so the records
+            // below describe every change of the transaction
+            Database.getBufferPool().logPages(tid);
+            writer.flush();
+            ArrayList<Long> updates = new ArrayList<Long>();
+            raf.seek(firstRecord);
+            while (raf.getFilePointer() < currentOffset) {
+                long start = raf.getFilePointer();
+                int type = raf.readInt();
+                long recordTid = raf.readLong();
+                if (recordTid == tid.getId() && (type == UPDATE_RECORD || type == DELTA_RECORD))
+                    updates.add(start);
+                skipRecordBody(type);
+                raf.readLong();
+            }
+
+            // undo newest first, starting from the cached version of
+            // each page, or the version on disk if it was evicted
+            HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+            for (int i = updates.size() - 1; i >= 0; i--)
+                replay(raf, updates.get(i), false, pages, true);
+            for (Page p : pages.values()) {
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                Database.getBufferPool().discardPage(p.getId());
+            }
+        }
+    }
+
+    /** Skip the body of a record whose type and tid were read, up to its start offset. */
+    private void skipRecordBody(int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            readPageData(raf);
+            readPageData(raf);
+            break;
+        case DELTA_RECORD:
+            readPageRef(raf);
+            PageDelta.read(raf);
+            break;
+        case CHECKPOINT_RECORD:
+            skipCheckpointBody(raf);
+            break;
+        }
+    }
+
+    /** Read the page of an update or delta record whose type and tid
+        were read, and skip the rest of its body. */
+    private static PageRef readUpdateBody(RandomAccessFile raf, int type) throws IOException {
+        PageRef ref = readPageRef(raf);
+        if (type == UPDATE_RECORD) {
+            raf.skipBytes(raf.readInt()); // before image
+            readPageRef(raf);
+            raf.skipBytes(raf.readInt()); // after image
+        } else {
+            PageDelta.skip(raf);
+        }
+        return ref;
+    }
+
+    /** Redo the records of each page in log order, on up to
+        recoveryThreads threads that each take a share of the pages.
+        @param records the offsets of the records to redo, by page
+        @return the redone pages */
+    private HashMap<PageId, Page> redo(Map<PageId, ArrayList<Long>> records) throws IOException {
+        HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        int threads = Math.min(recoveryThreads, records.size());
+        if (threads <= 1) {
+            for (ArrayList<Long> offsets : records.values()) {
+                for (long offset : offsets)
+                    replay(raf, offset, true, pages, false);
             }
+            return pages;
+        }
+
+        ArrayList<ArrayList<ArrayList<Long>>> shares = new ArrayList<ArrayList<ArrayList<Long>>>();
+        for (int i = 0; i < threads; i++)
+            shares.add(new ArrayList<ArrayList<Long>>());
+        int next = 0;
+        for (ArrayList<Long> offsets : records.values())
+            shares.get(next++ % threads).add(offsets);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "simpledb-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<Future<HashMap<PageId, Page>>> results = new ArrayList<Future<HashMap<PageId, Page>>>();
+            for (ArrayList<ArrayList<Long>> share : shares) {
+                results.add(workers.submit(() -> {
+                    // each worker reads the log through its own file
+                    HashMap<PageId, Page> redone = new HashMap<PageId, Page>();
+                    try (RandomAccessFile in = new RandomAccessFile(logFile, "r")) {
+                        for (ArrayList<Long> offsets : share) {
+                            for (long offset : offsets)
+                                replay(in, offset, true, redone, false);
+                        }
+                    }
+                    return redone;
+                }));
+            }
+            for (Future<HashMap<PageId, Page>> result : results)
+                pages.putAll(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return pages;
+    }
+
+    /** Redo or undo the update or delta record at the specified offset.
+        @param in the log file to read the record from
+        @param pages the current version of the pages changed so far,
+               updated with the result
+        @param useCached whether a page not in pages starts from its
+               version in the buffer pool, rather than from disk */
+    private static void replay(RandomAccessFile in, long offset, boolean redo,
+                               Map<PageId, Page> pages, boolean useCached)
+        throws IOException {
+        in.seek(offset);
+        int type = in.readInt();
+        in.readLong();
+        Page result;
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(in);
+            Page after = readPageData(in);
+            result = redo ? after : before;
+        } else {
+            PageRef ref = readPageRef(in);
+            PageDelta delta = PageDelta.read(in);
+            Page current = pages.get(ref.pid);
+            if (current == null && useCached)
+                current = Database.getBufferPool().peekPage(ref.pid);
+            if (current == null)
+                current = Database.getCatalog().getDatabaseFile(ref.pid.getTableId()).readPage(ref.pid);
+            byte[] data = current.getPageData().clone();
+            delta.apply(data, redo);
+            result = newPage(ref.pageClass, ref.pid, data);
+        }
+        pages.put(result.getId(), result);
+    }
+
+    /** Skip the body of a checkpoint record, whose type and tid were read. */
+    private static void skipCheckpointBody(RandomAccessFile raf) throws IOException {
+        int numXactions = raf.readInt();
+        raf.seek(raf.getFilePointer() + (long) numXactions * 2 * LONG_SIZE);
+        int numDirty = raf.readInt();
+        while (numDirty-- > 0) {
+            readPageRef(raf);
+            raf.readLong();
         }
     }
 
@@ -475,13 +1144,20 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        synchronized (truncateLock) {
+            synchronized (this) {
+                disableGroupCommit();
+                try {
+                    // checkpoints are fuzzy, write the pages so restart has nothing to redo
+                    Database.getBufferPool().flushAllPages();
+                    logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                    raf.close();
+                } catch (IOException e) {
+                    System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
@@ -490,12 +1166,128 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
+        // a truncation copies the log without the monitor, don't rewrite it meanwhile
+        synchronized (truncateLock) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                writer.flush();
+                if (raf.length() < HEADER_SIZE) {
+                    // nothing was ever logged
+                    raf.setLength(0);
+                    writeHeader(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    writer.reset(currentOffset);
+                    return;
+                }
+
+                // analysis: start at the last checkpoint, with the transactions
+                // that were active and the pages that were dirty then, and
+                // find the outcome of every transaction and the records to redo
+                raf.seek(0);
+                long cpOffset = raf.readLong();
+                HashMap<PageId, Long> recLsns = new HashMap<PageId, Long>();
+                long scanFrom = HEADER_SIZE;
+                if (cpOffset != NO_CHECKPOINT_ID) {
+                    raf.seek(cpOffset + INT_SIZE + LONG_SIZE);
+                    scanFrom = cpOffset;
+                    int numXactions = raf.readInt();
+                    for (int i = 0; i < numXactions; i++) {
+                        raf.readLong();
+                        scanFrom = Math.min(scanFrom, raf.readLong());
+                    }
+                    int numDirty = raf.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        PageId pid = readPageRef(raf).pid;
+                        long recLsn = raf.readLong();
+                        recLsns.put(pid, recLsn);
+                        scanFrom = Math.min(scanFrom, recLsn - baseLsn);
+                    }
+                    scanFrom = Math.max(scanFrom, HEADER_SIZE);
+                }
+
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> aborted = new HashSet<Long>();
+                LinkedHashMap<Long, Long> losers = new LinkedHashMap<Long, Long>(); // tid -> last record
+                ArrayList<Long> updates = new ArrayList<Long>();
+                ArrayList<Long> updateTids = new ArrayList<Long>();
+                ArrayList<PageId> redoPids = new ArrayList<PageId>(); // null if on disk already
+                raf.seek(scanFrom);
+                long end = raf.length();
+                while (raf.getFilePointer() < end) {
+                    long start = raf.getFilePointer();
+                    try {
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            PageId pid = readUpdateBody(raf, type).pid;
+                            // pages changed after the checkpoint become dirty
+                            // here, before it they were dirty or on disk
+                            if (start >= cpOffset && !recLsns.containsKey(pid))
+                                recLsns.put(pid, baseLsn + start);
+                            Long recLsn = recLsns.get(pid);
+                            updates.add(start);
+                            updateTids.add(recordTid);
+                            redoPids.add(recLsn != null && baseLsn + start >= recLsn ? pid : null);
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            aborted.add(recordTid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckpointBody(raf);
+                            break;
+                        }
+                        raf.readLong();
+                        if (type != CHECKPOINT_RECORD)
+                            losers.put(recordTid, start);
+                    } catch (EOFException e) {
+                        // torn record at the end of the log, written while crashing
+                        end = start;
+                        break;
+                    }
+                }
+                raf.setLength(end);
+                losers.keySet().removeAll(committed);
+                losers.keySet().removeAll(aborted);
+
+                // redo the committed changes that may not be on disk: the
+                // records of a page in log order, different pages in parallel
+                LinkedHashMap<PageId, ArrayList<Long>> redoRecords = new LinkedHashMap<PageId, ArrayList<Long>>();
+                int redone = 0;
+                for (int i = 0; i < updates.size(); i++) {
+                    PageId pid = redoPids.get(i);
+                    if (pid != null && committed.contains(updateTids.get(i))) {
+                        redoRecords.computeIfAbsent(pid, k -> new ArrayList<Long>()).add(updates.get(i));
+                        redone++;
+                    }
+                }
+                HashMap<PageId, Page> pages = redo(redoRecords);
+                redoneRecords = redone;
+
+                // undo the changes of transactions that never finished, newest first
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    if (losers.containsKey(updateTids.get(i)))
+                        replay(raf, updates.get(i), false, pages, false);
+                }
+                for (Page p : pages.values()) {
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(p.getId());
+                }
+
+                // log the losers as aborted, so a later recovery does not undo them again
+                currentOffset = end;
+                writer.reset(end);
+                for (Long loser : losers.keySet())
+                    endRecord(beginRecord(ABORT_RECORD, loser, 0));
+                force();
+                tidToFirstLogRecord.clear();
             }
-         }
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -504,7 +1296,11 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        writer.flush();
         raf.getChannel().force(true);
+        flushedLsn.accumulateAndGet(baseLsn + writer.flushedOffset(), Math::max);
+        forces.incrementAndGet();
+        commitsForced(commitsLogged);
     }
 
 }
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends log records to the end of a log file. Records are built in a
+ * reusable direct buffer and written to the file channel in large
+ * positional writes, when the buffer is full or the log is flushed, rather
+ * than with a system call per field. Positional writes leave the channel
+ * position alone, so the log can be read through the same file meanwhile.
+ * <p>
+ * Not thread safe; LogFile only uses it while holding its monitor.
+ */
+class LogWriter {
+
+    /** Size of the record buffer, large enough for a batch of update records. */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    // file offset of the first byte in the buffer
+    private long flushedOffset;
+    private long writes = 0;
+
+    /**
+     * @param channel the channel of the log file
+     * @param offset the file offset to append at, usually the end of the file
+     */
+    LogWriter(FileChannel channel, long offset) {
+        this(channel, offset, DEFAULT_BUFFER_SIZE);
+    }
+
+    LogWriter(FileChannel channel, long offset, int bufferSize) {
+        this.channel = channel;
+        this.flushedOffset = offset;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /** @return the file offset the next record is appended at */
+    long offset() {
+        return flushedOffset + buffer.position();
+    }
+
+    /** @return the file offset up to which records were written to the channel */
+    long flushedOffset() {
+        return flushedOffset;
+    }
+
+    /**
+     * Make room for a record of the specified size.
+     *
+     * @return the buffer to put the record into; the record must not be
+     *         larger than announced
+     */
+    ByteBuffer reserve(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) // a record larger than any before
+                buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(bytes) << 1);
+        }
+        return buffer;
+    }
+
+    /** Write the buffered records to the channel, without forcing it. */
+    void flush() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        while (buffer.hasRemaining())
+            flushedOffset += channel.write(buffer, flushedOffset);
+        buffer.clear();
+        writes++;
+    }
+
+    /** Drop the buffered records and append at the specified offset from now on. */
+    void reset(long offset) {
+        buffer.clear();
+        flushedOffset = offset;
+    }
+
+    /** @return the number of times buffered records were written to the channel */
+    long getWriteCount() {
+        return writes;
+    }
+}
@@ -33,6 +33,18 @@ public interface Page {
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+  /**
+   * Get the log sequence number of the latest log record describing this
+   * version of the page, or 0 if the page was not logged since it was read.
+   * The log must be on disk up to this LSN before the page is written out.
+   */
+    public long getLsn();
+
+  /**
+   * Set the log sequence number of the latest log record describing this page
+   */
+    public void setLsn(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The difference between two versions of a page, as the byte ranges in
+ * which their serialized forms differ, with the old and the new bytes of
+ * each range. For a heap page, inserting or deleting a tuple changes a
+ * header byte and one tuple slot, so a delta is a few dozen bytes instead
+ * of two page images.
+ * <p>
+ * Applying a delta only sets the bytes of its ranges, so redo and undo of
+ * a sequence of deltas can start from any version of the page in which the
+ * bytes outside the ranges are right.
+ */
+class PageDelta {
+
+    /** Ranges closer than this are merged, as a range costs two ints. */
+    static final int MERGE_GAP = 2 * LogFile.INT_SIZE;
+
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[] before;
+    private final byte[] after;
+
+    private PageDelta(int[] offsets, int[] lengths, byte[] before, byte[] after) {
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two serialized pages of the same size.
+     */
+    static PageDelta diff(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length)
+            throw new IllegalArgumentException("pages differ in size");
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int total = 0;
+        int i = 0;
+        while (i < newData.length) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; // exclusive
+            for (int j = end; j < newData.length && j - end < MERGE_GAP; j++) {
+                if (oldData[j] != newData[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end - start });
+            total += end - start;
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        int[] lengths = new int[ranges.size()];
+        byte[] before = new byte[total];
+        byte[] after = new byte[total];
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            offsets[r] = ranges.get(r)[0];
+            lengths[r] = ranges.get(r)[1];
+            System.arraycopy(oldData, offsets[r], before, pos, lengths[r]);
+            System.arraycopy(newData, offsets[r], after, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageDelta(offsets, lengths, before, after);
+    }
+
+    /** @return the number of byte ranges in which the versions differ */
+    int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes put by put() */
+    int size() {
+        return LogFile.INT_SIZE + offsets.length * 2 * LogFile.INT_SIZE + 2 * before.length;
+    }
+
+    void put(ByteBuffer buf) {
+        buf.putInt(offsets.length);
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            buf.putInt(offsets[r]).putInt(lengths[r]);
+            buf.put(before, pos, lengths[r]);
+            buf.put(after, pos, lengths[r]);
+            pos += lengths[r];
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        ByteBuffer before = ByteBuffer.allocate(BufferPool.getPageSize());
+        ByteBuffer after = ByteBuffer.allocate(BufferPool.getPageSize());
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            lengths[r] = in.readInt();
+            byte[] range = new byte[lengths[r]];
+            in.readFully(range);
+            before = ensureRoom(before, range.length).put(range);
+            in.readFully(range);
+            after = ensureRoom(after, range.length).put(range);
+        }
+        byte[] b = new byte[before.position()];
+        byte[] a = new byte[after.position()];
+        before.flip();
+        before.get(b);
+        after.flip();
+        after.get(a);
+        return new PageDelta(offsets, lengths, b, a);
+    }
+
+    /** Skip a delta put by put(). */
+    static void skip(DataInput in) throws IOException {
+        int n = in.readInt();
+        for (int r = 0; r < n; r++) {
+            in.readInt();
+            in.skipBytes(2 * in.readInt());
+        }
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer buf, int bytes) {
+        if (buf.remaining() >= bytes)
+            return buf;
+        ByteBuffer bigger = ByteBuffer.allocate(2 * buf.capacity() + bytes);
+        buf.flip();
+        return bigger.put(buf);
+    }
+
+    /**
+     * Set the ranges of a serialized page to their new (redo) or old (undo)
+     * bytes.
+     *
+     * @param data the serialized page, changed in place
+     * @param redo true to apply the new bytes, false for the old ones
+     */
+    void apply(byte[] data, boolean redo) {
+        byte[] src = redo ? after : before;
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(src, pos, data, offsets[r], lengths[r]);
+            pos += lengths[r];
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it needs
+ * room for a new page. The BufferPool reports every page that enters, is
+ * accessed in, or leaves the pool, and asks the policy for a victim when the
+ * pool is full.
+ * <p>
+ * Implementations need not be thread safe: the BufferPool serializes all
+ * calls into its policy.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * A page was added to the buffer pool.
+     *
+     * @param pid the id of the added page
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * A page that is already in the buffer pool was requested again.
+     *
+     * @param pid the id of the accessed page
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * A page left the buffer pool for a reason other than being chosen as
+     * victim, e.g. it was discarded.
+     *
+     * @param pid the id of the removed page
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict and stop tracking it.
+     *
+     * @param evictable tells whether a page may be evicted right now (e.g. it
+     *        is not pinned); pages it rejects must not be returned
+     * @return the id of the page to evict, or null if no tracked page is
+     *         evictable
+     */
+    public PageId selectVictim(Predicate<PageId> evictable);
+
+    /**
+     * A page returned by {@link #selectVictim} could not be evicted after
+     * all, e.g. it was pinned meanwhile or could not be written back. Track
+     * it again where it was before it was selected, not as a newly added
+     * page.
+     *
+     * @param pid the id of the page that stays in the pool
+     */
+    public void evictionFailed(PageId pid);
+}
@@ -0,0 +1,301 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * SlottedFile is an implementation of a DbFile that stores a collection of
+ * tuples in no particular order, like HeapFile, on SlottedPages: tuples take
+ * only the bytes their fields need, so tables with VARCHAR_TYPE columns can
+ * be stored. The file is simply a collection of those pages.
+ *
+ * @see simpledb.SlottedPage#SlottedPage
+ */
+public class SlottedFile implements DbFile {
+
+    private final File file;
+    private final TupleDesc td;
+
+    // which pages may have room for inserts
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            slotted file.
+     */
+    public SlottedFile(File f, TupleDesc td) {
+        this.file = f;
+        this.td = td;
+        this.freeSpace = new FreeSpaceMap(f);
+    }
+
+    /**
+     * Returns the File backing this SlottedFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this SlottedFile, computed like that
+     * of a HeapFile.
+     */
+    public int getId() {
+        return 31 * file.getAbsoluteFile().hashCode() + td.hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see DbFile.java for javadocs
+
+    /**
+     * Read the specified page from disk.
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    public Page readPage(PageId pid) {
+        int pgNo = pid.getPageNumber();
+        if (pgNo < 0 || pgNo >= numPages())
+            throw new IllegalArgumentException();
+
+        int pgSize = BufferPool.getPageSize();
+        try {
+            byte[] data = new byte[pgSize];
+            Database.getFileChannelPool().readFully(file, ByteBuffer.wrap(data), pgSize * (long) pgNo);
+            return new SlottedPage(new HeapPageId(pid.getTableId(), pgNo), data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writePage(Page page) throws IOException {
+        long offset = BufferPool.getPageSize() * (long) page.getId().getPageNumber();
+        Database.getFileChannelPool().writeFully(file, ByteBuffer.wrap(page.getPageData()), offset);
+        freeSpace.heapWritten();
+    }
+
+    /**
+     * Returns the number of pages in this SlottedFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Inserts the specified tuple to the file on behalf of transaction, on
+     * the first page with room for it. A page without room for even the
+     * smallest tuple of the file is marked full in the free-space map until
+     * a tuple is deleted from it; one that only lacks room for a longer
+     * tuple is still tried for shorter ones.
+     *
+     * @param tid The transaction performing the update
+     * @param t   The tuple to add.  This tuple should be updated to reflect that
+     *            it is now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if the tuple cannot be added, e.g. it is larger
+     *                     than a page
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        SlottedPage.checkTuple(td, t);
+        if (SlottedPage.recordSize(t) > SlottedPage.maxRecordSize())
+            throw new DbException("tuple is larger than a page");
+        BufferPool bp = Database.getBufferPool();
+        int np = numPages();
+        for (int pgNo = freeSpace.findFreePage(0, np); pgNo >= 0; pgNo = freeSpace.findFreePage(pgNo + 1, np)) {
+            PageId pid = new HeapPageId(getId(), pgNo);
+            // skip a cached page without room without locking it. Otherwise lock the page
+            // exclusively at once: two inserters upgrading shared locks would deadlock
+            SlottedPage cached = (SlottedPage) bp.peekPage(pid);
+            if (cached != null && !cached.hasRoomFor(t))
+                continue;
+            boolean held = bp.holdsLock(tid, pid);
+            SlottedPage pg = (SlottedPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            if (pg.hasRoomFor(t)) {
+                pg.insertTuple(t);
+                pg.markDirty(true, tid);
+                if (pg.isFull())
+                    freeSpace.markFilled(tid, pgNo);
+                return new ArrayList<Page>(Arrays.asList(pg));
+            }
+            // a shorter tuple may still fit
+            if (pg.isFull())
+                freeSpace.markFull(pgNo);
+            if (!held)
+                bp.releasePage(tid, pid);
+        }
+
+        // no page, extend the file by an empty page and insert into it through the buffer pool
+        PageId pid;
+        synchronized (this) {
+            pid = new HeapPageId(getId(), numPages());
+            writePage(new SlottedPage((HeapPageId) pid, SlottedPage.createEmptyPageData()));
+        }
+        SlottedPage pg = (SlottedPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        pg.insertTuple(t);
+        pg.markDirty(true, tid);
+        return new ArrayList<Page>(Arrays.asList(pg));
+    }
+
+    /**
+     * Inserts the specified tuples to the file on behalf of transaction, one
+     * at a time as insertTuple does.
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Collection<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t)) {
+                if (!pages.contains(p))
+                    pages.add(p);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Removes the specified tuple from the file on behalf of the specified
+     * transaction. Only the page its record id names is locked and read.
+     *
+     * @throws DbException if the tuple cannot be deleted or is not a member
+     *                     of the file
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        SlottedPage pg = (SlottedPage) Database.getBufferPool().getPage(tid, pageOf(t), Permissions.READ_WRITE);
+        pg.deleteTuple(t);
+        pg.markDirty(true, tid);
+        markFree(pg);
+        return new ArrayList<Page>(Arrays.asList(pg));
+    }
+
+    /**
+     * Removes the specified tuples from the file on behalf of the specified
+     * transaction, locking, reading and marking dirty each page once, in
+     * page order.
+     *
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *                     of the file
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, Collection<Tuple> tuples) throws DbException,
+            TransactionAbortedException {
+        TreeMap<Integer, ArrayList<Tuple>> byPage = new TreeMap<Integer, ArrayList<Tuple>>();
+        for (Tuple t : tuples)
+            byPage.computeIfAbsent(pageOf(t).getPageNumber(), k -> new ArrayList<Tuple>()).add(t);
+
+        ArrayList<Page> pages = new ArrayList<Page>(byPage.size());
+        for (Map.Entry<Integer, ArrayList<Tuple>> e : byPage.entrySet()) {
+            PageId pid = new HeapPageId(getId(), e.getKey());
+            SlottedPage pg = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            for (Tuple t : e.getValue())
+                pg.deleteTuple(t);
+            pg.markDirty(true, tid);
+            markFree(pg);
+            pages.add(pg);
+        }
+        return pages;
+    }
+
+    /**
+     * @return the id of the page of this file the record id of a tuple names
+     * @throws DbException if the tuple has no record id or it names a page
+     *                     that is not in this file
+     */
+    private HeapPageId pageOf(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple has no record id");
+        PageId pid = rid.getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() < 0 || pid.getPageNumber() >= numPages())
+            throw new DbException("tuple is not a member of this file");
+        return new HeapPageId(getId(), pid.getPageNumber());
+    }
+
+    private void markFree(SlottedPage pg) {
+        try {
+            freeSpace.markFree(pg.getId().getPageNumber());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile, reading
+     * pages through the buffer pool.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedFileIterator(tid);
+    }
+
+    private class SlottedFileIterator implements DbFileIterator {
+
+        private final TransactionId tid;
+        private int numPages;
+        private int currentPgNo;
+        private Iterator<Tuple> tupleIterator;
+        // the pin on the page tupleIterator reads from
+        private BufferPool.PagePin pin;
+
+        SlottedFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        private void unpinCurrentPage() {
+            if (pin != null) {
+                pin.unpin();
+                pin = null;
+            }
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            unpinCurrentPage();
+            numPages = numPages();
+            currentPgNo = 0;
+            tupleIterator = Collections.<Tuple>emptyList().iterator();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (tupleIterator == null)
+                return false;
+            while (!tupleIterator.hasNext() && currentPgNo < numPages) {
+                // the current page is exhausted, unpin it first so a scan never needs two frames
+                unpinCurrentPage();
+                PageId pid = new HeapPageId(getId(), currentPgNo++);
+                pin = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+                tupleIterator = ((SlottedPage) pin.getPage()).iterator();
+            }
+            if (tupleIterator.hasNext())
+                return true;
+            unpinCurrentPage(); // exhausted, don't hold the last page until close
+            return false;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tupleIterator.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            unpinCurrentPage();
+            tupleIterator = null;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Each instance of SlottedPage stores data for one page of SlottedFiles, in
+ * which tuples take only as many bytes as their fields, e.g. a VARCHAR_TYPE
+ * field two plus its length. It implements the Page interface that is used
+ * by BufferPool; pages are identified by HeapPageIds.
+ *
+ * @see SlottedFile
+ * @see BufferPool
+ */
+public class SlottedPage implements Page {
+
+    /** Bytes of the page header: the number of slots and of record bytes. */
+    static final int HEADER_SIZE = 8;
+    /** Bytes of a slot: the offset and length of its record. */
+    static final int SLOT_SIZE = 4;
+    /** Largest page size whose offsets fit in a slot. */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int pageSize;
+
+    private byte[] data; // guarded by this
+    private boolean shared; // data was handed out, copy it before a change
+    private int numSlots;
+    private int recordBytes;
+
+    private byte[] oldData;
+    private TransactionId dirty;
+    private boolean isDirty;
+    private volatile long lsn = 0;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk.
+     * The page starts with a header of two ints: the number of slots, and
+     * the number of bytes taken by records. The slot directory follows, each
+     * slot being the unsigned short offset in the page and length of its
+     * record, or zeroes for an empty slot. Records are packed at the end of
+     * the page, growing towards the slot directory; a record is its fields
+     * serialized in order. A page of zeroes is empty.
+     * <p>
+     * data is not modified; the page copies it on its first change.
+     *
+     * @see Database#getCatalog
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = BufferPool.getPageSize();
+        if (pageSize > MAX_PAGE_SIZE)
+            throw new IOException("slotted pages are at most " + MAX_PAGE_SIZE + " bytes");
+        this.data = data;
+        this.shared = true;
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        numSlots = buf.getInt(0);
+        recordBytes = buf.getInt(4);
+        if (numSlots < 0 || recordBytes < 0 || HEADER_SIZE + numSlots * SLOT_SIZE + recordBytes > pageSize)
+            throw new IOException("corrupt slotted page " + id.getPageNumber());
+
+        // the bytes read are the before image until the page is committed
+        oldData = data;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @throws DbException if the tuple does not have the specified schema,
+     *         or a field does not have the type of its column
+     */
+    static void checkTuple(TupleDesc td, Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("not legal tuple");
+        for (int i = 0; i < td.numFields(); i++) {
+            if (t.getField(i) == null || t.getField(i).getType() != td.getFieldType(i))
+                throw new DbException("field " + i + " is not a " + td.getFieldType(i));
+        }
+    }
+
+    /**
+     * @return the number of bytes the specified tuple takes on a page,
+     *         including its slot
+     */
+    static int recordSize(Tuple t) {
+        int size = SLOT_SIZE;
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            size += t.getTupleDesc().getFieldType(i).getLen(t.getField(i));
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the smallest tuple of the specified
+     *         TupleDesc takes on a page, including its slot
+     */
+    static int minRecordSize(TupleDesc td) {
+        int size = SLOT_SIZE;
+        for (int i = 0; i < td.numFields(); i++) {
+            Type type = td.getFieldType(i);
+            // an empty variable-length field still takes its 2-byte length
+            size += type.isFixedLength() ? type.getLen() : 2;
+        }
+        return size;
+    }
+
+    /** @return the size of the largest tuple an empty page has room for */
+    static int maxRecordSize() {
+        return BufferPool.getPageSize() - HEADER_SIZE;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData;
+            }
+            return new SlottedPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        byte[] current = getPageData();
+        synchronized (this) {
+            oldData = current;
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The page is not copied; it copies itself on its next change instead,
+     * so the returned array must not be modified.
+     *
+     * @see #SlottedPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public synchronized byte[] getPageData() {
+        shared = true;
+        return data;
+    }
+
+    /** Copy the page if it was handed out, before a change. */
+    private void beforeChange() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return ((data[HEADER_SIZE + slot * SLOT_SIZE] & 0xff) << 8)
+            | (data[HEADER_SIZE + slot * SLOT_SIZE + 1] & 0xff);
+    }
+
+    private int slotLength(int slot) {
+        return ((data[HEADER_SIZE + slot * SLOT_SIZE + 2] & 0xff) << 8)
+            | (data[HEADER_SIZE + slot * SLOT_SIZE + 3] & 0xff);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        ByteBuffer.wrap(data).putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset)
+            .putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, (short) length);
+    }
+
+    private void setHeader() {
+        ByteBuffer.wrap(data).putInt(0, numSlots).putInt(4, recordBytes);
+    }
+
+    /**
+     * Returns the number of bytes free for new tuples and their slots.
+     */
+    public synchronized int getFreeSpace() {
+        return pageSize - HEADER_SIZE - numSlots * SLOT_SIZE - recordBytes;
+    }
+
+    /**
+     * @return true if the specified tuple fits on this page
+     */
+    public synchronized boolean hasRoomFor(Tuple t) {
+        return hasRoom(recordSize(t));
+    }
+
+    /**
+     * @return true if not even the smallest tuple fits on this page
+     */
+    public synchronized boolean isFull() {
+        return !hasRoom(minRecordSize(td));
+    }
+
+    /** @return true if a record of the specified size, slot included, fits */
+    private boolean hasRoom(int size) {
+        if (firstEmptySlot() < numSlots)
+            size -= SLOT_SIZE;
+        return size <= getFreeSpace();
+    }
+
+    /** @return the lowest empty slot, or numSlots if there is none */
+    private int firstEmptySlot() {
+        int slot = 0;
+        while (slot < numSlots && slotLength(slot) != 0)
+            slot++;
+        return slot;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && slotLength(i) != 0;
+    }
+
+    /** @return the tuple in the specified used slot */
+    private Tuple tuple(int slot) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        ByteBuffer buf = ByteBuffer.wrap(data, slotOffset(slot), slotLength(slot));
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(buf));
+        } catch (ParseException e) {
+            throw new RuntimeException("corrupt record in slot " + slot + " of page " + pid.getPageNumber(), e);
+        }
+        return t;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the lowest empty slot; the
+     * tuple is updated to reflect that it is now stored on this page.
+     * @throws DbException if the page has no room for the tuple or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        checkTuple(td, t);
+        if (!hasRoomFor(t))
+            throw new DbException("no room for the tuple on page " + pid.getPageNumber());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException(e.toString());
+        }
+        byte[] record = baos.toByteArray();
+
+        beforeChange();
+        int slot = firstEmptySlot();
+        if (slot == numSlots)
+            numSlots++;
+        recordBytes += record.length;
+        int offset = pageSize - recordBytes;
+        System.arraycopy(record, 0, data, offset, record.length);
+        setSlot(slot, offset, record.length);
+        setHeader();
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page. The records stored below
+     * it are moved up over its bytes, so the free space of the page stays
+     * in one piece, and empty slots at the end of the directory are
+     * dropped.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.getTupleNumber();
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(slot) || !tuple(slot).equals(t))
+            throw new DbException("no this tuple");
+
+        beforeChange();
+        int offset = slotOffset(slot);
+        int length = slotLength(slot);
+        int start = pageSize - recordBytes;
+        System.arraycopy(data, start, data, start + length, offset - start);
+        Arrays.fill(data, start, start + length, (byte) 0);
+        for (int i = 0; i < numSlots; i++) {
+            int o = slotOffset(i);
+            if (slotLength(i) != 0 && o < offset)
+                setSlot(i, o + length, slotLength(i));
+        }
+        recordBytes -= length;
+        setSlot(slot, 0, 0);
+        while (numSlots > 0 && slotLength(numSlots - 1) == 0)
+            numSlots--;
+        setHeader();
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = tid;
+        isDirty = dirty;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return isDirty ? dirty : null;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, in slot order
+     * (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<Tuple> {
+        int slot = 0; // the next slot to look at
+
+        @Override
+        public boolean hasNext() {
+            synchronized (SlottedPage.this) {
+                while (slot < numSlots && slotLength(slot) == 0)
+                    slot++;
+                return slot < numSlots;
+            }
+        }
+
+        @Override
+        public Tuple next() {
+            synchronized (SlottedPage.this) {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return tuple(slot++);
+            }
+        }
+    }
+}
@@ -47,8 +47,8 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write all the dirty pages (or their update records) for this transaction out
+                Database.getBufferPool().prepareCommit(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
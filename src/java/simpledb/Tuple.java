@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -14,8 +17,15 @@ public class Tuple implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private TupleDesc td;
-    private Field[] fields;
+    private final Field[] fields;
     private RecordId rid;
+
+    // the serialized tuple fields not set yet are decoded from, and its layout.
+    // Tuples cached by a page are shared by readers: materialize sets every
+    // field before it drops source, so a reader that finds source null sees them
+    private transient volatile byte[] source;
+    private transient int sourceOffset;
+    private transient TupleDesc sourceTd;
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -29,6 +39,24 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded on first access from a
+     * serialized tuple, e.g. a slot of a page.
+     *
+     * @param td the schema of this tuple
+     * @param rid the location of this tuple on disk
+     * @param source the bytes holding the serialized tuple; they must not
+     *               change while fields are still to be decoded
+     * @param offset the offset of the tuple in source
+     */
+    Tuple(TupleDesc td, RecordId rid, byte[] source, int offset) {
+        this(td);
+        this.rid = rid;
+        this.source = source;
+        this.sourceOffset = offset;
+        this.sourceTd = td;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -77,7 +105,32 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields[i];
+        // read source first, see materialize
+        byte[] src = source;
+        Field f = fields[i];
+        if (f == null && src != null) {
+            try {
+                f = sourceTd.getFieldType(i).parse(src, sourceOffset + sourceTd.getFieldOffset(i));
+            } catch (ParseException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /** Decode the fields not decoded yet, and drop the serialized tuple. */
+    private void materialize() {
+        if (source == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+        source = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
     }
 
     /**
@@ -90,6 +143,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+        materialize();
         return Arrays.stream(fields)
             .map(Field::toString)
             .collect(Collectors.joining("\t"));
@@ -102,6 +156,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return Arrays.stream(fields).iterator();
     }
 
@@ -119,6 +174,8 @@ public class Tuple implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Tuple tuple = (Tuple) o;
+        materialize();
+        tuple.materialize();
         return td.equals(tuple.td) &&
             Arrays.equals(fields, tuple.fields) &&
             Objects.equals(rid, tuple.rid);
@@ -126,6 +183,7 @@ public class Tuple implements Serializable {
 
     @Override
     public int hashCode() {
+        materialize();
         int result = Objects.hash(td, rid);
         result = 31 * result + Arrays.hashCode(fields);
         return result;
@@ -64,6 +64,8 @@ public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> schema;
 
+    private transient volatile int[] offsets;
+
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
      * specified types, with associated named fields.
@@ -172,10 +174,28 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        return schema.parallelStream()
-            .map(x -> x.fieldType.getLen())
-            .mapToInt(x->x)
-            .sum();
+        int[] off = offsets();
+        return off[off.length - 1];
+    }
+
+    /**
+     * @return the offset in bytes of the ith field from the start of a
+     *         serialized tuple of this TupleDesc
+     */
+    int getFieldOffset(int i) {
+        return offsets()[i];
+    }
+
+    /** The field offsets, followed by the size, computed on first use. */
+    private int[] offsets() {
+        int[] off = offsets;
+        if (off == null) {
+            off = new int[schema.size() + 1];
+            for (int i = 0; i < schema.size(); i++)
+                off[i + 1] = off[i] + schema.get(i).fieldType.getLen();
+            offsets = off;
+        }
+        return off;
     }
 
     /**
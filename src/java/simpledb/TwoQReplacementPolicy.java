@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha, VLDB '94). Pages seen once enter a
+ * FIFO queue (A1in); only pages referenced again after leaving it, while
+ * their id is still remembered in the ghost queue A1out, are promoted to the
+ * LRU queue Am. A sequential scan therefore only cycles through A1in and
+ * leaves the hot pages in Am, e.g. B+ tree internal pages, alone.
+ */
+public class TwoQReplacementPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // resident pages referenced once, oldest first
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    // ids of pages recently evicted from a1in, oldest first. not resident
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    // resident hot pages, least recently used first
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    // the last victim, the queue it came from, and the id it pushed out of a1out
+    private PageId lastVictim;
+    private LinkedHashSet<PageId> lastVictimQueue;
+    private PageId lastForgotten;
+
+    /**
+     * Creates a 2Q policy for a buffer pool of the given size, with the
+     * customary A1in size of a quarter and A1out size of half of the pool.
+     *
+     * @param capacity number of pages in the buffer pool
+     */
+    public TwoQReplacementPolicy(int capacity) {
+        this(Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param kin target number of resident pages in A1in
+     * @param kout number of evicted page ids remembered in A1out
+     */
+    public TwoQReplacementPolicy(int kin, int kout) {
+        if (kin < 1 || kout < 0)
+            throw new IllegalArgumentException("invalid 2Q queue sizes");
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public void pageAdded(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else if (!am.contains(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // correlated references while in A1in don't make a page hot
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid))
+            am.remove(pid);
+    }
+
+    public PageId selectVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty())
+            victim = evictFrom(a1in, evictable);
+        if (victim == null)
+            victim = evictFrom(am, evictable);
+        if (victim == null)
+            victim = evictFrom(a1in, evictable);
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                lastVictim = pid;
+                lastVictimQueue = queue;
+                lastForgotten = queue == a1in ? remember(pid) : null;
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    /** @return the id that fell out of A1out to make room, if any */
+    private PageId remember(PageId pid) {
+        if (kout == 0)
+            return null;
+        a1out.add(pid);
+        if (a1out.size() <= kout)
+            return null;
+        Iterator<PageId> it = a1out.iterator();
+        PageId forgotten = it.next();
+        it.remove();
+        return forgotten;
+    }
+
+    public void evictionFailed(PageId pid) {
+        if (!pid.equals(lastVictim)) {
+            // other victims were chosen since, put it back as the coldest page seen once
+            a1out.remove(pid);
+            addFirst(a1in, pid);
+            return;
+        }
+        if (lastVictimQueue == a1in) {
+            a1out.remove(pid);
+            if (lastForgotten != null)
+                addFirst(a1out, lastForgotten);
+        }
+        addFirst(lastVictimQueue, pid);
+        lastVictim = null;
+        lastVictimQueue = null;
+        lastForgotten = null;
+    }
+
+    /** Put pid at the head of the queue, where the next victim is taken from. */
+    private static void addFirst(LinkedHashSet<PageId> queue, PageId pid) {
+        LinkedHashSet<PageId> rest = new LinkedHashSet<>(queue);
+        queue.clear();
+        queue.add(pid);
+        queue.addAll(rest);
+    }
+}
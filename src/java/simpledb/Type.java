@@ -2,6 +2,8 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +26,23 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", buf.position());
+            }
+        }
+
+        @Override
+        Field parse(byte[] data, int offset) throws ParseException {
+            if (offset < 0 || offset + 4 > data.length)
+                throw new ParseException("couldn't parse", offset);
+            return new IntField((data[offset] << 24) | ((data[offset + 1] & 0xff) << 16)
+                                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,15 +61,91 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            int start = buf.position();
+            try {
+                int strLen = buf.getInt();
+                byte bs[] = new byte[strLen];
+                buf.get(bs);
+                buf.position(start + getLen());
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                throw new ParseException("couldn't parse", start);
+            }
+        }
+    }, VARCHAR_TYPE() {
+        @Override
+        public int getLen() {
+            return STRING_LEN+2;
+        }
+
+        @Override
+        public int getLen(Field f) {
+            return ((StringField) f).getValue().length() + 2;
+        }
+
+        @Override
+        public boolean isFixedLength() {
+            return false;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                byte bs[] = new byte[dis.readUnsignedShort()];
+                dis.readFully(bs);
+                return new VarcharField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            int start = buf.position();
+            try {
+                byte bs[] = new byte[buf.getShort() & 0xffff];
+                buf.get(bs);
+                return new VarcharField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", start);
+            }
+        }
+
+        @Override
+        Field parse(byte[] data, int offset) throws ParseException {
+            if (offset < 0 || offset > data.length)
+                throw new ParseException("couldn't parse", offset);
+            return parse(ByteBuffer.wrap(data, offset, data.length - offset));
+        }
     };
     
     public static final int STRING_LEN = 128;
 
   /**
-   * @return the number of bytes required to store a field of this type.
+   * @return the number of bytes required to store a field of this type; for
+   *   a type that is not fixed length, the most a field can take.
    */
     public abstract int getLen();
 
+  /**
+   * @return the number of bytes the specified field of this type is
+   *   serialized in.
+   */
+    public int getLen(Field f) {
+        return getLen();
+    }
+
+  /**
+   * @return true if every field of this type is serialized in getLen()
+   *   bytes. Only types that are can be stored in a HeapFile.
+   */
+    public boolean isFixedLength() {
+        return true;
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -60,4 +155,24 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer, starting at its current position. The
+   *   position is advanced by exactly {@link #getLen(Field)} bytes of the
+   *   field read.
+   * @param buf The buffer to read from
+   * @throws ParseException if the data read from the buffer is not
+   *   of the appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified array at the specified offset.
+   * @throws ParseException if the data is not of the appropriate type.
+   */
+    Field parse(byte[] data, int offset) throws ParseException {
+        return parse(ByteBuffer.wrap(data, offset, getLen()));
+    }
+
 }
@@ -94,6 +94,15 @@ public class Utility {
         return tup;
     }
 
+    /**
+     * Delete a heap file and the side file of its free-space map when the
+     * virtual machine exits, e.g. for a temporary table.
+     */
+    public static void deleteOnExit(File f) {
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+    }
+
     /**
      * A utility method to create a new HeapFile with a single empty page,
      * assuming the path does not already exist. If the path exists, the file
@@ -103,6 +112,7 @@ public class Utility {
     public static HeapFile createEmptyHeapFile(String path, int cols)
         throws IOException {
         File f = new File(path);
+        FreeSpaceMap.reset(f);
         // touch the file
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
@@ -0,0 +1,45 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Instance of Field that stores a single String of at most a maximum length,
+ * serialized in only as many bytes as it has. It compares and hashes like a
+ * StringField with the same value.
+ */
+public class VarcharField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param s
+	 *            The value of this field.
+	 * @param maxSize
+	 *            The maximum size of this string
+	 */
+	public VarcharField(String s, int maxSize) {
+		super(s, maxSize);
+	}
+
+	/**
+	 * Write this string to dos: two bytes of string length, followed by the
+	 * string.
+	 *
+	 * @param dos
+	 *            Where the string is written
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		String s = getValue();
+		dos.writeShort(s.length());
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * @return the Type for this Field
+	 */
+	public Type getType() {
+		return Type.VARCHAR_TYPE;
+	}
+}
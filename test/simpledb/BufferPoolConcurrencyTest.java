@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 2000;
+
+    /**
+     * Many threads reading random pages through a pool much smaller than the
+     * table must always get the right page, and every request counts as
+     * exactly one hit or miss.
+     */
+    @Test public void concurrentReadsWithEviction() throws Exception {
+        int numPages = 20;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * numPages, null, tuples);
+        BufferPool bp = new BufferPool(5);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            threads[i] = new Thread(() -> {
+                Random rand = new Random(seed);
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int r = 0; r < REQUESTS_PER_THREAD; r++) {
+                        int pgNo = rand.nextInt(numPages);
+                        HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+                        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        Tuple first = p.iterator().next();
+                        assertEquals(tuples.get(pgNo * 504).get(0).intValue(),
+                                ((IntField) first.getField(0)).getValue());
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(THREADS * REQUESTS_PER_THREAD, bp.getHitCount() + bp.getMissCount());
+        assertTrue(bp.getMissCount() >= numPages);
+        assertTrue(bp.getEvictionCount() >= numPages - 5);
+    }
+
+    /**
+     * A discarded page is read from disk again on the next request.
+     */
+    @Test public void discardedPageIsReloaded() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = new BufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        Page first = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertSame(first, bp.getPage(tid, pid, Permissions.READ_ONLY));
+
+        bp.discardPage(pid);
+        assertFalse(bp.isCached(pid));
+        Page second = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertNotSame(first, second);
+        assertEquals(2, bp.getMissCount());
+        assertEquals(0, bp.getEvictionCount());
+    }
+
+    /**
+     * Pinned pages stay cached while other pages cycle through the pool, and
+     * a pool with only pinned pages cannot take another page.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = new BufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pinned = new HeapPageId(hf.getId(), 0);
+        BufferPool.PagePin pin = bp.pinPage(tid, pinned, Permissions.READ_ONLY);
+        for (int pgNo = 1; pgNo < 4; pgNo++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+        assertSame(pin.getPage(), bp.getPage(tid, pinned, Permissions.READ_ONLY));
+
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException, all pages are pinned");
+        } catch (DbException e) {
+        }
+
+        pin.unpin();
+        assertEquals(0, bp.getPinCount(pinned));
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertFalse(bp.isCached(pinned));
+    }
+
+    /**
+     * A pin only releases the frame it pinned: once the page was discarded
+     * and read again, releasing the old pin leaves the new one alone. Pins
+     * a transaction did not release go away when it completes.
+     */
+    @Test public void pinsBelongToFramesAndTransactions() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = new BufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        BufferPool.PagePin stale = bp.pinPage(tid, pid, Permissions.READ_ONLY);
+        bp.discardPage(pid);
+        BufferPool.PagePin current = bp.pinPage(tid, pid, Permissions.READ_ONLY);
+        assertNotSame(stale.getPage(), current.getPage());
+        stale.unpin();
+        stale.unpin();
+        assertEquals(1, bp.getPinCount(pid));
+
+        // an iterator that is never closed keeps its page pinned until the transaction ends
+        TransactionId other = new TransactionId();
+        bp.pinPage(other, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(other, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException, all pages are pinned");
+        } catch (DbException e) {
+        }
+        bp.transactionComplete(other);
+        assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), 1)));
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid));
+
+        current.unpin();
+        assertEquals(0, bp.getPinCount(pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
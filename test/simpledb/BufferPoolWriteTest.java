@@ -48,6 +48,22 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // heap file whose page writes fail while failWrites is set
+    static class FailingHeapFile extends HeapFile {
+        boolean failWrites = false;
+
+        public FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            if (failWrites)
+                throw new IOException("disk full");
+            super.writePage(page);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +149,40 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A dirty victim that cannot be written back stays in the pool, dirty,
+     * and the page request that needed its frame fails.
+     */
+    @Test public void failedEvictionKeepsDirtyPage() throws Exception {
+        HeapFile twoPages = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        FailingHeapFile hf = new FailingHeapFile(twoPages.getFile(), twoPages.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.setSteal(true);
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        HeapPageId second = new HeapPageId(hf.getId(), 1);
+
+        Page p = bp.getPage(tid, first, Permissions.READ_WRITE);
+        p.markDirty(true, tid);
+        hf.failWrites = true;
+        try {
+            bp.getPage(tid, second, Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+        assertTrue(bp.isCached(first));
+        assertFalse(bp.isCached(second));
+        assertSame(p, bp.getPage(tid, first, Permissions.READ_ONLY));
+        assertEquals(tid, p.isDirty());
+        assertEquals(0, bp.getEvictionCount());
+
+        hf.failWrites = false;
+        bp.getPage(tid, second, Permissions.READ_ONLY);
+        assertFalse(bp.isCached(first));
+        assertEquals(1, bp.getEvictionWriteCount());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FileChannelPoolTest {
+    private FileChannelPool pool;
+    private ArrayList<File> files;
+
+    @Before public void setUp() throws Exception {
+        pool = new FileChannelPool(2);
+        files = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            File f = File.createTempFile("channelpool", ".dat");
+            f.deleteOnExit();
+            files.add(f);
+        }
+    }
+
+    @After public void tearDown() {
+        pool.closeAll();
+    }
+
+    private static byte[] filled(int len, int value) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    /**
+     * Unit test for FileChannelPool.writeFully() and readFully()
+     */
+    @Test public void writeThenRead() throws Exception {
+        File f = files.get(0);
+        pool.writeFully(f, ByteBuffer.wrap(filled(4096, 1)), 0);
+        pool.writeFully(f, ByteBuffer.wrap(filled(4096, 2)), 4096);
+        assertEquals(8192, pool.size(f));
+
+        byte[] page = new byte[4096];
+        pool.readFully(f, ByteBuffer.wrap(page), 4096);
+        assertArrayEquals(filled(4096, 2), page);
+        pool.readFully(f, ByteBuffer.wrap(page), 0);
+        assertArrayEquals(filled(4096, 1), page);
+    }
+
+    /**
+     * Unit test for FileChannelPool.read() past the end of the file
+     */
+    @Test public void readPastEnd() throws Exception {
+        File f = files.get(0);
+        pool.writeFully(f, ByteBuffer.wrap(filled(100, 1)), 0);
+        assertEquals(-1, pool.read(f, ByteBuffer.allocate(10), 100));
+        assertEquals(100, pool.read(f, ByteBuffer.allocate(200), 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readFullyShortFile() throws Exception {
+        File f = files.get(0);
+        pool.writeFully(f, ByteBuffer.wrap(filled(100, 1)), 0);
+        pool.readFully(f, ByteBuffer.allocate(4096), 0);
+    }
+
+    /**
+     * Unit test for FileChannelPool.append()
+     */
+    @Test public void append() throws Exception {
+        File f = files.get(0);
+        assertEquals(0, pool.append(f, ByteBuffer.wrap(filled(10, 1))));
+        assertEquals(10, pool.append(f, ByteBuffer.wrap(filled(10, 2))));
+        assertEquals(20, f.length());
+    }
+
+    /**
+     * The pool never keeps more channels open than its limit, and files whose
+     * channel was closed are transparently reopened.
+     */
+    @Test public void openFileLimit() throws Exception {
+        for (int i = 0; i < files.size(); i++)
+            pool.writeFully(files.get(i), ByteBuffer.wrap(filled(16, i)), 0);
+        assertEquals(2, pool.numOpenFiles());
+
+        byte[] b = new byte[16];
+        pool.readFully(files.get(0), ByteBuffer.wrap(b), 0);
+        assertArrayEquals(filled(16, 0), b);
+        assertEquals(2, pool.numOpenFiles());
+    }
+
+    /**
+     * Many threads reading different offsets of the same file through the
+     * same channel all see their own data.
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final File f = files.get(0);
+        final int pages = 16;
+        for (int i = 0; i < pages; i++)
+            pool.writeFully(f, ByteBuffer.wrap(filled(512, i)), i * 512L);
+
+        final boolean[] ok = new boolean[pages];
+        Thread[] readers = new Thread[pages];
+        for (int i = 0; i < pages; i++) {
+            final int pg = i;
+            readers[i] = new Thread(() -> {
+                try {
+                    byte[] b = new byte[512];
+                    for (int r = 0; r < 100; r++) {
+                        pool.readFully(f, ByteBuffer.wrap(b), pg * 512L);
+                        if (!Arrays.equals(filled(512, pg), b))
+                            return;
+                    }
+                    ok[pg] = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            readers[i].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        for (boolean b : ok)
+            assertTrue(b);
+    }
+
+    /**
+     * A channel closed by the pool between acquire() and the operation that
+     * uses it, as when another thread's open evicts it, is reopened and the
+     * operation retried.
+     */
+    @Test public void closedAfterAcquire() throws Exception {
+        final File f = files.get(0);
+        final int[] closes = new int[1];
+        FileChannelPool racy = new FileChannelPool(2) {
+            @Override FileChannel acquire(File file) throws IOException {
+                FileChannel fc = super.acquire(file);
+                if (closes[0] < 2) {
+                    closes[0]++;
+                    close(file);
+                }
+                return fc;
+            }
+        };
+        try {
+            racy.writeFully(f, ByteBuffer.wrap(filled(16, 7)), 0);
+            byte[] b = new byte[16];
+            racy.readFully(f, ByteBuffer.wrap(b), 0);
+            assertArrayEquals(filled(16, 7), b);
+            assertEquals(2, closes[0]);
+        } finally {
+            racy.closeAll();
+        }
+    }
+
+    /**
+     * After closeAll() the pool refuses further I/O.
+     */
+    @Test(expected = IOException.class)
+    public void closeAll() throws Exception {
+        File f = files.get(0);
+        pool.writeFully(f, ByteBuffer.wrap(filled(16, 1)), 0);
+        pool.closeAll();
+        assertEquals(0, pool.numOpenFiles());
+        pool.readFully(f, ByteBuffer.allocate(16), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileChannelPoolTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        Utility.deleteOnExit(f);
+        return f;
+    }
+
+    private static File textFile(String text) throws IOException {
+        File f = tempFile(".txt");
+        try (Writer w = new FileWriter(f)) {
+            w.write(text);
+        }
+        return f;
+    }
+
+    private static ArrayList<ArrayList<Integer>> tuples(int rows, int columns) {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int r = 0; r < rows; r++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            for (int c = 0; c < columns; c++)
+                tuple.add((r * 31 + c) * (r % 2 == 0 ? 1 : -7));
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+
+    private static String toText(ArrayList<ArrayList<Integer>> tuples) {
+        StringBuilder sb = new StringBuilder();
+        for (ArrayList<Integer> tuple : tuples)
+            sb.append(Utility.listToString(tuple).replace('\t', ',')).append('\n');
+        return sb.toString();
+    }
+
+    /** The output of many small chunks parsed on several threads is the
+        same as that of one thread, and of the in-memory conversion. */
+    @Test public void parallelMatchesSerial() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = tuples(3000, 3);
+        File in = textFile(toText(tuples));
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+
+        File serial = tempFile(".dat");
+        HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), 3, types, ',', 1);
+        File parallel = tempFile(".dat");
+        HeapFileEncoder.convert(in, parallel, BufferPool.getPageSize(), 3, types, ',', 4, 100);
+        File memory = tempFile(".dat");
+        HeapFileEncoder.convert(tuples, memory, BufferPool.getPageSize(), 3);
+
+        byte[] expected = Files.readAllBytes(serial.toPath());
+        assertEquals(0, expected.length % BufferPool.getPageSize());
+        assertTrue(Arrays.equals(expected, Files.readAllBytes(parallel.toPath())));
+        assertTrue(Arrays.equals(expected, Files.readAllBytes(memory.toPath())));
+
+        HeapFile hf = Utility.openHeapFile(3, memory);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Blank lines and carriage returns are skipped, the last line needs
+        no newline, and string fields are padded. */
+    @Test public void linesAndStrings() throws Exception {
+        File in = textFile("1|abc\r\n\n-2| x \r\n3|y");
+        File out = tempFile(".dat");
+        Type[] types = { Type.INT_TYPE, Type.STRING_TYPE };
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2, types, '|', 2);
+        assertEquals(BufferPool.getPageSize(), out.length());
+
+        HeapFile hf = new HeapFile(out, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, "strings");
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        ArrayList<String> rows = new ArrayList<String>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            rows.add(t.getField(0) + ":" + ((StringField) t.getField(1)).getValue());
+        }
+        assertEquals(Arrays.asList("1:abc", "-2:x", "3:y"), rows);
+    }
+
+    /** An empty input gives one empty page. */
+    @Test public void emptyInput() throws Exception {
+        File out = tempFile(".dat");
+        HeapFileEncoder.convert(textFile(""), out, BufferPool.getPageSize(), 2);
+        assertTrue(Arrays.equals(new byte[BufferPool.getPageSize()], Files.readAllBytes(out.toPath())));
+
+        HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), out, BufferPool.getPageSize(), 2);
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongNumberOfFields() throws Exception {
+        HeapFileEncoder.convert(textFile("1,2\n3,4,5\n"), tempFile(".dat"), BufferPool.getPageSize(), 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
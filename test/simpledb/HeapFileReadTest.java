@@ -77,6 +77,30 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory mapped HeapFile, including
+     * a page appended after the file was first mapped.
+     */
+    @Test
+    public void readPageMmap() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        Database.getCatalog().addTable(mapped, UUID.randomUUID().toString());
+
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage expected = (HeapPage) hf.readPage(pid);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertArrayEquals(expected.getPageData(), page.getPageData());
+
+        HeapPage appended = new HeapPage(new HeapPageId(mapped.getId(), 1),
+                HeapPage.createEmptyPageData());
+        appended.insertTuple(Utility.getHeapTuple(7, 2));
+        mapped.writePage(appended);
+        assertEquals(2, mapped.numPages());
+        page = (HeapPage) mapped.readPage(appended.getId());
+        assertArrayEquals(appended.getPageData(), page.getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +145,69 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Scans the file through a fresh buffer pool with the specified
+     * read-ahead window, checking every tuple is returned exactly once.
+     *
+     * @return the number of pages the scan itself had to read from disk
+     */
+    private long scanMisses(HeapFile f, int readAheadPages, int tuples) throws Exception {
+        BufferPool bp = Database.resetBufferPool(40);
+        f.setReadAheadPages(readAheadPages);
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        it.close();
+        assertEquals(tuples, count);
+        return bp.getMissCount();
+    }
+
+    /**
+     * With read-ahead, every page after the first is already in the buffer
+     * pool when the scan reaches it; without it, the scan reads each page.
+     */
+    @Test
+    public void testIteratorReadAhead() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        assertEquals(8, bigFile.numPages());
+
+        assertEquals(8, scanMisses(bigFile, 0, 504 * 8));
+        assertEquals(1, scanMisses(bigFile, 4, 504 * 8));
+
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId last = new HeapPageId(bigFile.getId(), bigFile.numPages() - 1);
+        bp.discardPage(last);
+        bp.prefetchPage(last).get();
+        assertTrue(bp.isCached(last));
+    }
+
+    /**
+     * A scan pins the page it is reading from, and only that page.
+     */
+    @Test
+    public void testIteratorPinsCurrentPage() throws Exception {
+        HeapFile twoPages = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        twoPages.setReadAheadPages(0);
+        HeapPageId first = new HeapPageId(twoPages.getId(), 0);
+        HeapPageId second = new HeapPageId(twoPages.getId(), 1);
+
+        DbFileIterator it = twoPages.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(first));
+        for (int i = 0; i < 504; i++)
+            it.next();
+        assertEquals(0, bp.getPinCount(first));
+        assertEquals(1, bp.getPinCount(second));
+        it.close();
+        assertEquals(0, bp.getPinCount(second));
+    }
+
     /**
      * JUnit suite target
      */
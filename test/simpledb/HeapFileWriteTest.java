@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +47,173 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to the page the free-space map names, without reading the
+     * full pages before it, also after the file is opened again.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        reopened.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(4, reopened.numPages());
+        assertEquals(1, bp.getMissCount());
+    }
+
+    /**
+     * The free-space map of a heap file that was rewritten behind its back
+     * is thrown away, so the emptied pages are found again.
+     */
+    @Test public void rewrittenFileDropsStaleMap() throws Exception {
+        for (int i = 0; i < 3 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        File f = empty.getFile();
+        long modified = f.lastModified();
+
+        // same length, other contents
+        FileOutputStream out = new FileOutputStream(f);
+        for (int i = 0; i < 3; i++)
+            out.write(HeapPage.createEmptyPageData());
+        out.close();
+        f.setLastModified(modified + 1000);
+
+        HeapFile reopened = Utility.openHeapFile(2, f);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Tuple t = Utility.getHeapTuple(0, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(3, reopened.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * An insert locks the page it tries exclusively at once, so a reader of
+     * the page can still insert into it while another inserter waits.
+     */
+    @Test public void insertDoesNotUpgradeSharedLock() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+
+        final TransactionId other = new TransactionId();
+        final Exception[] error = new Exception[1];
+        Thread inserter = new Thread() {
+            public void run() {
+                try {
+                    empty.insertTuple(other, Utility.getHeapTuple(1, 2));
+                    Database.getBufferPool().transactionComplete(other);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        inserter.start();
+        Thread.sleep(200); // let the other insert wait for the page
+        empty.insertTuple(tid, Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        inserter.join();
+        assertNull(error[0]);
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * The pages filled by an aborted transaction are marked free again.
+     */
+    @Test public void abortFreesFilledPages() throws Exception {
+        for (int i = 0; i < 2 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Deleting a tuple from a full page makes it the target of the next insert.
+     */
+    @Test public void deleteMarksPageFree() throws Exception {
+        Tuple onFirstPage = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, onFirstPage);
+        for (int i = 1; i < 2 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, onFirstPage);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * A delete reads only the page the record id of the tuple names.
+     */
+    @Test public void deleteReadsOnlyRecordIdPage() throws Exception {
+        Tuple last = null;
+        for (int i = 0; i < 3 * 504; ++i) {
+            last = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, last);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        empty.deleteTuple(tid, last);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(0, bp.getHitCount());
+    }
+
+    /**
+     * A tuple whose record id names a page of another file or past the end
+     * of the file is not a member of the file.
+     */
+    @Test(expected = DbException.class)
+    public void deleteTupleNotInFile() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        t.setRecordId(new RecordId(new HeapPageId(empty.getId(), 5), 0));
+        empty.deleteTuple(tid, t);
+    }
+
+    /**
+     * A batch delete reads each page of its tuples once, whatever their order.
+     */
+    @Test public void deleteTuplesTouchesEachPageOnce() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 3 * 504; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            tuples.add(t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        // every other tuple, interleaving the pages
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        for (int i = 0; i < 504; i += 2)
+            for (int p = 0; p < 3; p++)
+                victims.add(tuples.get(p * 504 + i));
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ArrayList<Page> pages = empty.deleteTuples(tid, victims);
+        assertEquals(3, pages.size());
+        assertEquals(3, bp.getMissCount());
+        assertEquals(0, bp.getHitCount());
+        for (Page p : pages)
+            assertEquals(252, ((HeapPage) p).getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -6,6 +6,7 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
@@ -13,6 +14,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapPageReadTest extends SimpleDbTestBase {
@@ -56,7 +58,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         // Convert it to a HeapFile and read in the bytes
         try {
             File temp = File.createTempFile("table", ".dat");
-            temp.deleteOnExit();
+            Utility.deleteOnExit(temp);
             HeapFileEncoder.convert(table, temp, BufferPool.getPageSize(), 2);
             EXAMPLE_DATA = TestUtil.readFileBytes(temp.getAbsolutePath());
         } catch (IOException e) {
@@ -120,6 +122,35 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * The fields of a tuple are decoded from the page bytes when they are
+     * first read, so a scan that only reads the key does not decode the
+     * rest: a corrupt second field goes unnoticed until it is read.
+     */
+    @Test public void fieldsDecodedOnFirstRead() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        HeapPageId spid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(spid, HeapPage.createEmptyPageData());
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(42));
+        t.setField(1, new StringField("payload", Type.STRING_LEN));
+        page.insertTuple(t);
+
+        // a negative length, no string can be decoded from it
+        byte[] data = page.getPageData().clone();
+        int slots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        ByteBuffer.wrap(data).putInt((slots + 7) / 8 + 4, -1);
+        Tuple read = new HeapPage(spid, data).iterator().next();
+        assertEquals(new IntField(42), read.getField(0));
+        try {
+            read.getField(1);
+            fail("expected the string to be decoded and rejected on first read");
+        } catch (NoSuchElementException e) {
+            // explicitly ignored
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,9 +1,14 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +131,91 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before image shares the bytes the page was read from, and after
+     * setBeforeImage is only copied when the page is next changed.
+     */
+    @Test public void beforeImageCopiedOnChange() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertSame(HeapPageReadTest.EXAMPLE_DATA, page.oldData);
+        byte[] loaded = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertArrayEquals(loaded, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        assertNull(page.oldData);
+        byte[] committed = page.getPageData();
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(committed, page.getPageData()));
+    }
+
+    /**
+     * getPageData returns the page as read until it changes, then a copy
+     * patched with the changed slots, which it returns while unchanged.
+     */
+    @Test public void pageDataPatchesChangedSlots() throws Exception {
+        byte[] read = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, read);
+        assertSame(read, page.getPageData());
+
+        Iterator<Tuple> it = page.iterator();
+        Tuple deleted = it.next();
+        Tuple kept = it.next();
+        page.deleteTuple(deleted);
+        Tuple inserted = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(inserted);
+        byte[] patched = page.getPageData();
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, read);
+        assertSame(patched, page.getPageData());
+
+        HeapPage reread = new HeapPage(pid, patched);
+        assertEquals(page.getNumEmptySlots(), reread.getNumEmptySlots());
+        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
+        it = reread.iterator();
+        while (it.hasNext())
+            tuples.add(it.next());
+        assertTrue(tuples.contains(kept));
+        assertFalse(tuples.contains(deleted));
+        assertTrue(tuples.contains(inserted));
+    }
+
+    /**
+     * On a page with thousands of slots, inserts fill the lowest empty
+     * slot and the iterator returns the used slots in order.
+     */
+    @Test public void widePageSlots() throws Exception {
+        BufferPool.setPageSize(65536);
+        try {
+            HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+            int slots = page.getNumEmptySlots();
+            assertEquals(65536 * 8 / (8 * 8 + 1), slots);
+            for (int i = 0; i < slots; i++)
+                page.insertTuple(Utility.getHeapTuple(new int[] { i, 0 }));
+            assertEquals(0, page.getNumEmptySlots());
+
+            int[] freed = { 63, 64, 5000, 8000 };
+            Iterator<Tuple> it = page.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                Tuple t = it.next();
+                assertEquals(i, t.getRecordId().getTupleNumber());
+                if (Arrays.binarySearch(freed, i) >= 0)
+                    page.deleteTuple(t);
+            }
+            assertEquals(freed.length, page.getNumEmptySlots());
+            assertFalse(page.isSlotUsed(64));
+            assertTrue(page.isSlotUsed(65));
+
+            Tuple t = Utility.getHeapTuple(new int[] { -1, 0 });
+            page.insertTuple(t);
+            assertEquals(63, t.getRecordId().getTupleNumber());
+            assertEquals(freed.length - 1, new HeapPage(pid, page.getPageData()).getNumEmptySlots());
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
     /**
      * JUnit suite target
      */
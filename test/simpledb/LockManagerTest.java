@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(0, 0);
+        p1 = new HeapPageId(0, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /** Acquire a lock in a new thread; the latch opens once it is granted. */
+    private CountDownLatch acquireAsync(TransactionId tid, PageId pid, Permissions perm,
+                                        AtomicBoolean aborted) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, perm);
+                granted.countDown();
+            } catch (TransactionAbortedException e) {
+                aborted.set(true);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertFalse(lm.holdsExclusiveLock(tid1, p0));
+    }
+
+    @Test public void upgradeWhenSoleHolder() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+        // an exclusive lock covers later shared requests
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+    }
+
+    /**
+     * A reader arriving after a queued writer waits behind it, and both are
+     * granted in order once the first reader releases.
+     */
+    @Test public void waitersAreGrantedInFifoOrder() throws Exception {
+        AtomicBoolean aborted = new AtomicBoolean();
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        CountDownLatch writer = acquireAsync(tid2, p0, Permissions.READ_WRITE, aborted);
+        assertFalse(writer.await(100, TimeUnit.MILLISECONDS));
+        CountDownLatch reader = acquireAsync(tid3, p0, Permissions.READ_ONLY, aborted);
+        assertFalse(reader.await(100, TimeUnit.MILLISECONDS));
+
+        lm.releaseAll(tid1);
+        assertTrue(writer.await(1, TimeUnit.SECONDS));
+        assertFalse(reader.await(100, TimeUnit.MILLISECONDS));
+        lm.release(tid2, p0);
+        assertTrue(reader.await(1, TimeUnit.SECONDS));
+        assertFalse(aborted.get());
+    }
+
+    @Test public void releaseAllReleasesLockSet() throws Exception {
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid1, p1, Permissions.READ_ONLY);
+        assertEquals(2, lm.getLockedPages(tid1).size());
+        assertEquals(1, lm.getExclusivelyLockedPages(tid1).size());
+        lm.releaseAll(tid1);
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertFalse(lm.holdsLock(tid1, p1));
+        assertTrue(lm.getLockedPages(tid1).isEmpty());
+        lm.acquire(tid2, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * The request closing a cycle detects it right away, and the younger
+     * transaction is aborted; the older one gets its lock once the victim's
+     * locks are released.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        AtomicBoolean aborted = new AtomicBoolean();
+        lm.acquire(tid1, p0, Permissions.READ_WRITE);
+        lm.acquire(tid2, p1, Permissions.READ_WRITE);
+        CountDownLatch older = acquireAsync(tid1, p1, Permissions.READ_WRITE, aborted);
+        assertFalse(older.await(100, TimeUnit.MILLISECONDS));
+        try {
+            lm.acquire(tid2, p0, Permissions.READ_WRITE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+        }
+        assertFalse(lm.holdsLock(tid2, p0));
+        assertEquals(1, lm.getDeadlockCount());
+        assertTrue(lm.getMaxDetectionNanos() < TimeUnit.SECONDS.toNanos(1));
+
+        lm.releaseAll(tid2);
+        assertTrue(older.await(1, TimeUnit.SECONDS));
+        assertFalse(aborted.get());
+    }
+
+    /**
+     * When the cycle is closed by the older transaction, the younger one is
+     * woken up and aborted.
+     */
+    @Test public void deadlockVictimIsWokenUp() throws Exception {
+        AtomicBoolean aborted = new AtomicBoolean();
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+        CountDownLatch younger = acquireAsync(tid2, p0, Permissions.READ_WRITE, aborted);
+        assertFalse(younger.await(100, TimeUnit.MILLISECONDS));
+
+        CountDownLatch older = acquireAsync(tid1, p0, Permissions.READ_WRITE, new AtomicBoolean());
+        for (int i = 0; i < 100 && !aborted.get(); i++)
+            Thread.sleep(10);
+        assertTrue(aborted.get());
+        lm.releaseAll(tid2);
+        assertTrue(older.await(1, TimeUnit.SECONDS));
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogWriterTest extends SimpleDbTestBase {
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("logwriter", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After public void closeFile() throws Exception {
+        raf.close();
+        file.delete();
+    }
+
+    @Test public void recordsAreBufferedUntilFlush() throws Exception {
+        LogWriter writer = new LogWriter(raf.getChannel(), 0);
+        writer.reserve(12).putInt(7).putLong(42L);
+        writer.reserve(4).putInt(8);
+        assertEquals(16, writer.offset());
+        assertEquals(0, raf.length());
+
+        writer.flush();
+        assertEquals(16, raf.length());
+        assertEquals(16, writer.flushedOffset());
+        assertEquals(1, writer.getWriteCount());
+        raf.seek(0);
+        assertEquals(7, raf.readInt());
+        assertEquals(42L, raf.readLong());
+        assertEquals(8, raf.readInt());
+    }
+
+    @Test public void largeRecordGrowsBuffer() throws Exception {
+        LogWriter writer = new LogWriter(raf.getChannel(), 0, 16);
+        writer.reserve(8).putLong(1L);
+        ByteBuffer buf = writer.reserve(1000);
+        for (int i = 0; i < 250; i++)
+            buf.putInt(i);
+        writer.flush();
+        assertEquals(1008, raf.length());
+        raf.seek(1004);
+        assertEquals(249, raf.readInt());
+    }
+
+    /**
+     * An update record of a heap page holds the page data twice plus a few
+     * bytes per page: a tag instead of the class names, and the page id.
+     * It is only used if the pages differ almost everywhere.
+     */
+    @Test public void updateRecordIsCompact() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        byte[] data = HeapPage.createEmptyPageData();
+        Arrays.fill(data, (byte) 0xff); // every slot used
+        HeapPage after = new HeapPage(pid, data);
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, before, after);
+        int perPage = 1 + 1 + 2 * LogFile.INT_SIZE + LogFile.INT_SIZE + BufferPool.getPageSize();
+        assertEquals(LogFile.RECORD_OVERHEAD + 2 * perPage, log.getNextLsn() - lsn);
+    }
+
+    /**
+     * Inserting a tuple is logged as a delta of the header byte and the
+     * tuple slot rather than as two page images.
+     */
+    @Test public void insertIsLoggedAsDelta() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, before, after);
+        int ref = 1 + 1 + 2 * LogFile.INT_SIZE;
+        // at most two ranges: a header byte and the tuple
+        int delta = LogFile.INT_SIZE + 2 * (2 * LogFile.INT_SIZE) + 2 * (1 + 2 * LogFile.INT_SIZE);
+        assertTrue(log.getNextLsn() - lsn <= LogFile.RECORD_OVERHEAD + ref + delta);
+    }
+
+    /**
+     * Records of a transaction are buffered and written with one write
+     * when it commits, and LSNs keep increasing across log truncation.
+     */
+    @Test public void commitWritesBufferedRecordsOnce() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        long begin = log.logXactionBegin(tid);
+        long writes = log.getWriteCount();
+        long update = log.logWrite(tid, page, page);
+        assertEquals(writes, log.getWriteCount());
+        long commit = log.logCommit(tid);
+        assertEquals(writes + 1, log.getWriteCount());
+        assertTrue(begin < update && update < commit);
+
+        long next = log.getNextLsn();
+        log.logCheckpoint();
+        TransactionId tid2 = new TransactionId();
+        assertTrue(log.logXactionBegin(tid2) > next);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogWriterTest.class);
+    }
+}
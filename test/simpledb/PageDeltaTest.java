@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private static byte[] page(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    @Test public void identicalPagesHaveNoRanges() {
+        byte[] data = page(256, 1);
+        PageDelta delta = PageDelta.diff(data, data.clone());
+        assertEquals(0, delta.getNumRanges());
+        assertEquals(LogFile.INT_SIZE, delta.size());
+    }
+
+    @Test public void nearbyChangesAreMerged() {
+        byte[] oldData = page(256, 1);
+        byte[] newData = oldData.clone();
+        newData[10]++;
+        newData[12]++;                          // within MERGE_GAP of 10
+        newData[100]++;
+        newData[100 + PageDelta.MERGE_GAP + 1]++; // too far from 100
+        PageDelta delta = PageDelta.diff(oldData, newData);
+        assertEquals(3, delta.getNumRanges());
+    }
+
+    @Test public void redoAndUndo() {
+        byte[] oldData = page(256, 1);
+        byte[] newData = oldData.clone();
+        for (int i = 40; i < 60; i++)
+            newData[i] = 0;
+        newData[255] = 9;
+        PageDelta delta = PageDelta.diff(oldData, newData);
+
+        byte[] data = oldData.clone();
+        delta.apply(data, true);
+        assertArrayEquals(newData, data);
+        delta.apply(data, false);
+        assertArrayEquals(oldData, data);
+    }
+
+    @Test public void serializeRoundTrip() throws Exception {
+        byte[] oldData = page(BufferPool.getPageSize(), 1);
+        byte[] newData = page(BufferPool.getPageSize(), 2); // differs everywhere
+        newData[3] = oldData[3];
+        PageDelta delta = PageDelta.diff(oldData, newData);
+
+        ByteBuffer buf = ByteBuffer.allocate(delta.size());
+        delta.put(buf);
+        assertFalse(buf.hasRemaining());
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(buf.array())));
+        assertEquals(delta.getNumRanges(), read.getNumRanges());
+        assertEquals(delta.size(), read.size());
+
+        byte[] data = oldData.clone();
+        read.apply(data, true);
+        assertTrue(Arrays.equals(newData, data));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentSizes() {
+        PageDelta.diff(new byte[8], new byte[16]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(0, pgNo);
+    }
+
+    /**
+     * Drives a policy the way BufferPool does, for a pool of the given size.
+     */
+    private static class PoolSimulator {
+        final ReplacementPolicy policy;
+        final int capacity;
+        final HashSet<PageId> resident = new HashSet<>();
+        int hits = 0;
+
+        PoolSimulator(ReplacementPolicy policy, int capacity) {
+            this.policy = policy;
+            this.capacity = capacity;
+        }
+
+        boolean access(PageId pid) {
+            if (resident.contains(pid)) {
+                policy.pageAccessed(pid);
+                hits++;
+                return true;
+            }
+            if (resident.size() >= capacity)
+                assertTrue(resident.remove(policy.selectVictim(p -> true)));
+            resident.add(pid);
+            policy.pageAdded(pid);
+            return false;
+        }
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy lru = new LRUReplacementPolicy();
+        lru.pageAdded(pid(1));
+        lru.pageAdded(pid(2));
+        lru.pageAdded(pid(3));
+        lru.pageAccessed(pid(1));
+        assertEquals(pid(2), lru.selectVictim(p -> true));
+        assertEquals(pid(1), lru.selectVictim(p -> !p.equals(pid(3))));
+        assertNull(lru.selectVictim(p -> false));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy clock = new ClockReplacementPolicy();
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+        clock.pageAdded(pid(3));
+        // first sweep clears all reference bits, second evicts the first page
+        assertEquals(pid(1), clock.selectVictim(p -> true));
+        clock.pageAccessed(pid(2));
+        assertEquals(pid(3), clock.selectVictim(p -> true));
+        clock.pageRemoved(pid(2));
+        assertNull(clock.selectVictim(p -> true));
+    }
+
+    /**
+     * A page referenced again shortly after its first eviction is hot; a
+     * long scan afterwards must not push it out under 2Q, while it does
+     * under LRU.
+     */
+    @Test public void twoQResistsScans() {
+        PoolSimulator twoQ = new PoolSimulator(new TwoQReplacementPolicy(4), 4);
+        PoolSimulator lru = new PoolSimulator(new LRUReplacementPolicy(), 4);
+        for (PoolSimulator sim : new PoolSimulator[] { twoQ, lru }) {
+            sim.access(pid(0));
+            for (int i = 1; i <= 4; i++)
+                sim.access(pid(i));
+            sim.access(pid(0));
+            for (int i = 5; i < 100; i++)
+                sim.access(pid(i));
+        }
+        assertTrue(twoQ.access(pid(0)));
+        assertFalse(lru.access(pid(0)));
+    }
+
+    /**
+     * A page whose eviction failed goes back where it was: the next victim
+     * under LRU, and a cold page still in A1in under 2Q rather than a page
+     * promoted to Am.
+     */
+    @Test public void evictionFailedRestoresPosition() {
+        ReplacementPolicy lru = new LRUReplacementPolicy();
+        lru.pageAdded(pid(1));
+        lru.pageAdded(pid(2));
+        assertEquals(pid(1), lru.selectVictim(p -> true));
+        lru.evictionFailed(pid(1));
+        assertEquals(pid(1), lru.selectVictim(p -> true));
+
+        ReplacementPolicy twoQ = new TwoQReplacementPolicy(1, 4);
+        twoQ.pageAdded(pid(1));
+        twoQ.pageAdded(pid(2));
+        assertEquals(pid(1), twoQ.selectVictim(p -> true));
+        twoQ.evictionFailed(pid(1));
+        twoQ.pageAdded(pid(3));
+        assertEquals(pid(1), twoQ.selectVictim(p -> true));
+        // only now is pid(1) remembered, and promoted to Am when it comes back
+        twoQ.pageAdded(pid(1));
+        assertEquals(pid(2), twoQ.selectVictim(p -> true));
+    }
+
+    /**
+     * BufferPool counts hits and misses independently of the policy in use.
+     */
+    @Test public void hitAndMissCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = new BufferPool(2, new ClockReplacementPolicy());
+        TransactionId tid = new TransactionId();
+        for (int pg = 0; pg < 3; pg++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+
+        assertEquals(3, bp.getMissCount());
+        assertEquals(1, bp.getHitCount());
+        assertEquals(1, bp.getEvictionCount());
+        assertEquals(0.25, bp.getHitRatio(), 1e-9);
+        bp.resetStats();
+        assertEquals(0, bp.getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE }, new String[] { "id", "name" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new VarcharField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static ArrayList<String> names(SlottedPage page) {
+        ArrayList<String> names = new ArrayList<String>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            names.add(((StringField) it.next().getField(1)).getValue());
+        return names;
+    }
+
+    @Test public void varcharRoundTrip() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new VarcharField("abc", Type.STRING_LEN).serialize(new DataOutputStream(baos));
+        assertEquals(5, baos.size());
+        assertEquals(5, Type.VARCHAR_TYPE.getLen(new VarcharField("abc", Type.STRING_LEN)));
+        Field f = Type.VARCHAR_TYPE.parse(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(Type.VARCHAR_TYPE, f.getType());
+        assertEquals(new StringField("abc", Type.STRING_LEN), f);
+        assertTrue(f.compare(Predicate.Op.EQUALS, new StringField("abc", Type.STRING_LEN)));
+    }
+
+    /** Tuples take only the bytes of their fields and a slot. */
+    @Test public void insertTakesActualSize() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int free = page.getFreeSpace();
+        assertEquals(BufferPool.getPageSize() - SlottedPage.HEADER_SIZE, free);
+
+        Tuple t = tuple(1, "abc");
+        page.insertTuple(t);
+        assertEquals(free - (4 + 2 + 3 + SlottedPage.SLOT_SIZE), page.getFreeSpace());
+        assertEquals(new RecordId(pid, 0), t.getRecordId());
+        page.insertTuple(tuple(2, ""));
+        page.insertTuple(tuple(3, "a longer name"));
+
+        SlottedPage reread = new SlottedPage(pid, page.getPageData());
+        assertEquals(Arrays.asList("abc", "", "a longer name"), names(reread));
+        assertEquals(page.getFreeSpace(), reread.getFreeSpace());
+        Tuple first = reread.iterator().next();
+        assertEquals(new IntField(1), first.getField(0));
+        assertEquals(t, first);
+    }
+
+    /** A page holds many more short strings than a HeapPage. */
+    @Test public void fillWithShortStrings() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "name" + n)))
+            page.insertTuple(tuple(n, "name" + n++));
+        int heapSlots = BufferPool.getPageSize() * 8 / ((4 + Type.STRING_LEN + 4) * 8 + 1);
+        assertTrue(n + " tuples", n > 5 * heapSlots);
+        assertTrue(page.getFreeSpace() < SlottedPage.recordSize(tuple(n, "name" + n)));
+        try {
+            page.insertTuple(tuple(n, "name" + n));
+            fail("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+    }
+
+    /**
+     * Deleting a tuple moves the records below it over its bytes, and drops
+     * empty slots at the end of the directory.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int empty = page.getFreeSpace();
+        Tuple a = tuple(1, "first");
+        Tuple b = tuple(2, "second tuple");
+        Tuple c = tuple(3, "third");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+
+        page.deleteTuple(b);
+        assertFalse(page.isSlotUsed(1));
+        assertEquals(empty - SlottedPage.recordSize(a) - SlottedPage.recordSize(c) - SlottedPage.SLOT_SIZE,
+                     page.getFreeSpace());
+        assertEquals(Arrays.asList("first", "third"), names(new SlottedPage(pid, page.getPageData())));
+
+        // the empty slot is reused
+        Tuple d = tuple(4, "fourth");
+        page.insertTuple(d);
+        assertEquals(1, d.getRecordId().getTupleNumber());
+
+        page.deleteTuple(c);
+        page.deleteTuple(d);
+        assertEquals(empty - SlottedPage.recordSize(a), page.getFreeSpace());
+        page.deleteTuple(a);
+        assertTrue(Arrays.equals(SlottedPage.createEmptyPageData(), page.getPageData()));
+
+        try {
+            page.deleteTuple(a);
+            fail("tuple was deleted; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+    }
+
+    /** getPageData shares the page, which is copied on its next change. */
+    @Test public void pageDataCopiedOnChange() throws Exception {
+        byte[] read = SlottedPage.createEmptyPageData();
+        SlottedPage page = new SlottedPage(pid, read);
+        assertSame(read, page.getPageData());
+        page.insertTuple(tuple(1, "abc"));
+        assertTrue(Arrays.equals(SlottedPage.createEmptyPageData(), read));
+        assertTrue(names(page.getBeforeImage()).isEmpty());
+
+        byte[] data = page.getPageData();
+        assertSame(data, page.getPageData());
+        page.setBeforeImage();
+        page.insertTuple(tuple(2, "def"));
+        assertEquals(Arrays.asList("abc"), names(new SlottedPage(pid, data)));
+        assertEquals(Arrays.asList("abc"), names(page.getBeforeImage()));
+    }
+
+    @Test(expected = DbException.class)
+    public void wrongFieldType() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(1));
+        t.setField(1, new StringField("abc", Type.STRING_LEN));
+        page.insertTuple(t);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
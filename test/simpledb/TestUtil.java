@@ -219,11 +219,21 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public ArrayList<Page> insertTuples(TransactionId tid, Collection<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
             throws DbException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
         }
 
+        public ArrayList<Page> deleteTuples(TransactionId tid, Collection<Tuple> tuples)
+            throws DbException, TransactionAbortedException {
+            throw new RuntimeException("not implemented");
+        }
+
         public int bytesPerPage() {
             throw new RuntimeException("not implemented");
         }
@@ -379,7 +389,7 @@ public class TestUtil {
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            emptyFile.deleteOnExit();
+            Utility.deleteOnExit(emptyFile);
         }
 
         protected void setUp() throws Exception {
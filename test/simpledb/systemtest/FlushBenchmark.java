@@ -0,0 +1,65 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures a flush-heavy workload: each transaction moves one tuple on every
+ * page of a table and commits under FORCE, so every page is logged, written
+ * and made its own before image on every commit. Prints the results; only
+ * checks that no tuple is lost. Not part of the system tests, run it with
+ * <pre>java -cp ... simpledb.systemtest.FlushBenchmark</pre>
+ */
+public class FlushBenchmark {
+
+    private static final int PAGES = 64;
+    private static final int ROUNDS = 20;
+
+    /** @return the bytes this thread allocated so far, or -1 if the JVM does not tell */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Delete the first tuple of every page and insert it back. */
+    private static void round(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int p = 0; p < PAGES; p++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), p), Permissions.READ_WRITE);
+            Iterator<Tuple> it = page.iterator();
+            Tuple tuple = it.next();
+            page.deleteTuple(tuple);
+            page.insertTuple(tuple);
+            page.markDirty(true, t.getId());
+        }
+        t.commit();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        int perPage = (BufferPool.getPageSize() * 8) / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PAGES * perPage, null, tuples);
+        Database.resetBufferPool(2 * PAGES);
+
+        round(hf); // warm up
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++)
+            round(hf);
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("%d commits of %d changed pages: %.1f ms/commit, %.0f bytes allocated/page%n",
+                          ROUNDS, PAGES, elapsed / 1e6 / ROUNDS, (double) bytes / ROUNDS / PAGES);
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests group commit in LogFile, and compares commit throughput with and
+ * without it.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 50;
+
+    @After public void tearDown() {
+        Database.getLogFile().disableGroupCommit();
+    }
+
+    /**
+     * Run transactions that only begin and commit from several threads.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private long runCommits(int threads, int commitsPerThread) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    for (int c = 0; c < commitsPerThread; c++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread w : workers)
+            w.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Concurrent commits share forces.
+     */
+    @Test public void commitsShareForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.enableGroupCommit(10000, THREADS);
+        long forcesBefore = log.getForceCount();
+        runCommits(THREADS, COMMITS_PER_THREAD);
+
+        assertEquals(2 * THREADS * COMMITS_PER_THREAD, log.getTotalRecords());
+        assertTrue(log.getForceCount() - forcesBefore < THREADS * COMMITS_PER_THREAD);
+    }
+
+    /**
+     * A lone commit is forced once the maximum delay has passed.
+     */
+    @Test public void loneCommitWaitsForDelay() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.enableGroupCommit(50000, 100);
+        long elapsed = runCommits(1, 1);
+        assertTrue(elapsed >= 50000000L);
+        assertTrue(log.getForceCount() >= 1);
+    }
+
+    /**
+     * With NO FORCE, a group committed transaction is only in the log; it
+     * survives a crash.
+     */
+    @Test public void groupCommittedInsertSurvivesCrash() throws Exception {
+        File file = new File("groupcommit.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setForce(false);
+        Database.getLogFile().enableGroupCommit(1000, 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(Utility.getTupleDesc(2));
+        tup.setField(0, new IntField(42));
+        tup.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(tup)), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        assertTrue(scan.hasNext());
+        assertEquals(new IntField(42), scan.next().getField(0));
+        assertFalse(scan.hasNext());
+        scan.close();
+        t.commit();
+    }
+
+    /**
+     * Throughput of many small concurrent commits, forcing the log per
+     * commit versus once per group. Prints the comparison; only checks that
+     * group commit forces less often.
+     */
+    @Test public void throughputComparison() throws Exception {
+        LogFile log = Database.getLogFile();
+        runCommits(THREADS, 5); // warm up
+
+        long forces = log.getForceCount();
+        long perCommit = runCommits(THREADS, COMMITS_PER_THREAD);
+        long perCommitForces = log.getForceCount() - forces;
+
+        log.enableGroupCommit(2000, THREADS);
+        forces = log.getForceCount();
+        long grouped = runCommits(THREADS, COMMITS_PER_THREAD);
+        long groupedForces = log.getForceCount() - forces;
+
+        int commits = THREADS * COMMITS_PER_THREAD;
+        System.out.printf("%d commits from %d threads: per-commit force %.0f commits/s (%d forces), "
+                          + "group commit %.0f commits/s (%d forces)%n",
+                          commits, THREADS,
+                          commits * 1e9 / perCommit, perCommitForces,
+                          commits * 1e9 / grouped, groupedForces);
+        assertTrue(groupedForces < perCommitForces);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
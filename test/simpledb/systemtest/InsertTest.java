@@ -68,6 +68,99 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testManyToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(2, 10000, 1);
+    }
+
+    /** Insert count tuples into the file within the specified transaction. */
+    private static void insert(TransactionId tid, HeapFile hf, int count) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < count; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { i, 0 }));
+        Insert insOp = new Insert(tid, new TupleIterator(Utility.getTupleDesc(2), tuples), hf.getId());
+        insOp.open();
+        assertEquals(count, ((IntField) insOp.next().getField(0)).getValue());
+        insOp.close();
+    }
+
+    private static int count(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /**
+     * A large insert appends whole pages without reading them through the
+     * buffer pool.
+     */
+    @Test public void bulkInsertBypassesBufferPool() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf, 10000);
+        t.commit();
+
+        int perPage = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData())
+            .getNumEmptySlots();
+        assertEquals(10000 / perPage, hf.getBulkPageCount());
+        assertEquals((10000 + perPage - 1) / perPage, hf.numPages());
+        // only the pages of the left over tuples were read
+        assertTrue(bp.getMissCount() < hf.numPages() - hf.getBulkPageCount() + 2);
+        assertEquals(10000, count(hf));
+    }
+
+    /** The pages of an aborted large insert are emptied by its rollback. */
+    @Test public void bulkInsertAbort() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf, 10000);
+        assertTrue(hf.getBulkPageCount() > 0);
+        t.abort();
+        assertEquals(0, count(hf));
+
+        // the emptied pages are not taken for full: once the first page is
+        // full again, the next tuple goes to the second
+        int perPage = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData())
+            .getNumEmptySlots();
+        int pages = hf.numPages();
+        t = new Transaction();
+        t.start();
+        Tuple tup = null;
+        for (int i = 0; i <= perPage; i++) {
+            tup = Utility.getHeapTuple(i, 2);
+            hf.insertTuple(t.getId(), tup);
+        }
+        assertEquals(1, tup.getRecordId().getPageId().getPageNumber());
+        assertEquals(pages, hf.numPages());
+        t.commit();
+    }
+
+    /** The pages of a large insert that did not commit before a crash are
+        emptied by recovery. */
+    @Test public void bulkInsertCrash() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf, 10000);
+        assertTrue(hf.getBulkPageCount() > 0);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        Database.getLogFile().recover();
+        assertEquals(0, count(hf));
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -427,6 +427,139 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // NO FORCE: commit leaves the page in the pool, only the log has it
+        // crash: recovery redoes the committed insert
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 30, 0);
+        t.commit();
+
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertFalse(onDisk.iterator().hasNext());
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 30, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceWritebackSkipsForce()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // the commit forced the log past the update record of the page,
+        // so writing the page back later does not force the log again
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 34, 0);
+        t.commit();
+
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Page p = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertTrue(p.getLsn() > 0);
+        assertTrue(p.getLsn() < Database.getLogFile().getFlushedLsn());
+
+        long forces = Database.getLogFile().getForceCount();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(forces, Database.getLogFile().getForceCount());
+        assertTrue(((HeapPage) hf1.readPage(pid)).iterator().hasNext());
+    }
+
+    @Test public void TestNoForceAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // NO FORCE: T1 commits without writing its page, T2 updates the
+        // same page and aborts; the page goes back to T1's version, which
+        // is not on disk yet
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 31, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 32, 0);
+        t2.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 31, true);
+        look(hf1, t, 32, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 31, true);
+        look(hf1, t, 32, false);
+        t.commit();
+    }
+
+    @Test public void TestStealEvictionCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        Database.resetBufferPool(2).setSteal(true);
+
+        // *** Test:
+        // STEAL: a scan evicts the page T1 is updating, which writes it
+        // crash: recovery undoes the uncommitted insert
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 33, 0);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        SeqScan scan = new SeqScan(t2.getId(), big.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        t2.commit();
+
+        assertFalse(Database.getBufferPool().isCached(pid));
+        assertEquals(3, countTuples(hf1, pid)); // 1, 2 and the stolen 33
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 33, false);
+        t.commit();
+    }
+
+    private int countTuples(HeapFile hf, HeapPageId pid) {
+        int count = 0;
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(pid)).iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests the background page cleaner of the buffer pool: evictions find
+ * pages it wrote clean, so the thread that misses does not write them.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 16;
+    private static final int DIRTY_PAGES = 4;
+    private int perPage;
+
+    /**
+     * Commit inserts that fill DIRTY_PAGES pages under NO FORCE, so they
+     * stay dirty in the pool.
+     */
+    private HeapFile createDirtyPages() throws Exception {
+        File file = new File("cleaner.db");
+        file.delete();
+        Utility.deleteOnExit(file);
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        bp.setForce(false);
+
+        perPage = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData())
+            .getNumEmptySlots();
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < DIRTY_PAGES * perPage; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { i, 0 }));
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), tuples), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+        assertEquals(DIRTY_PAGES, hf.numPages());
+        return hf;
+    }
+
+    /** Scan a table larger than the pool, evicting every cached page. */
+    private void scanLargeTable() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 2 * BUFFER_PAGES * perPage, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), big.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        t.commit();
+    }
+
+    @Test public void evictionsWriteDirtyPagesWithoutCleaner() throws Exception {
+        createDirtyPages();
+        BufferPool bp = Database.getBufferPool();
+        bp.resetStats();
+        scanLargeTable();
+        assertEquals(DIRTY_PAGES, bp.getEvictionWriteCount());
+        assertEquals(0, bp.getEvictionWritesAvoided());
+    }
+
+    @Test public void cleanerAvoidsEvictionWrites() throws Exception {
+        HeapFile hf = createDirtyPages();
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageCleaner(1.0, 1);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (bp.getCleanedPageCount() < DIRTY_PAGES && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+        } finally {
+            bp.stopPageCleaner();
+        }
+        assertEquals(DIRTY_PAGES, bp.getCleanedPageCount());
+
+        bp.resetStats();
+        scanLargeTable();
+        assertEquals(0, bp.getEvictionWriteCount());
+        assertEquals(DIRTY_PAGES, bp.getEvictionWritesAvoided());
+
+        // the written pages are on disk
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(DIRTY_PAGES * perPage, count);
+    }
+
+    @Test public void cleanerStopsAtFraction() throws Exception {
+        createDirtyPages();
+        BufferPool bp = Database.getBufferPool();
+        // 12 frames are free, one more clean frame reaches the target
+        int target = BUFFER_PAGES - DIRTY_PAGES + 1;
+        assertEquals(1, bp.cleanPages((double) target / BUFFER_PAGES));
+        assertEquals(0, bp.cleanPages((double) target / BUFFER_PAGES));
+    }
+
+    /**
+     * The background writers leave a page alone while another transaction
+     * holds it exclusively, it may be changing the page before marking it
+     * dirty.
+     */
+    @Test public void writersSkipPageLockedByOtherTransaction() throws Exception {
+        HeapFile hf = createDirtyPages();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        bp.getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        assertEquals(DIRTY_PAGES - 1, bp.writeOldestPages(DIRTY_PAGES));
+        assertEquals(0, bp.cleanPages(1.0));
+
+        t.commit();
+        assertEquals(1, bp.cleanPages(1.0));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,298 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests the analysis, redo and undo phases of recovery and fuzzy
+ * checkpoints, and compares the time to recover a synthetic log with
+ * serial and parallel redo.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 64;
+    private static final int XACTIONS = 500;
+    private static final int UPDATES_PER_XACTION = 4;
+
+    private final File dataFile = new File("recovery.db");
+    private final File logFile = new File("log");
+
+    /**
+     * Create a heap file of empty pages and a log of committed
+     * transactions that each insert a tuple into a few random pages, as
+     * if they all committed under NO FORCE and the system crashed.
+     *
+     * @return the expected contents of the pages after recovery
+     */
+    private byte[][] createSyntheticLog() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(dataFile)) {
+            out.write(new byte[PAGES * BufferPool.getPageSize()]);
+        }
+        HeapFile hf = Utility.openHeapFile(2, dataFile);
+        HeapPage[] pages = new HeapPage[PAGES];
+        for (int p = 0; p < PAGES; p++)
+            pages[p] = new HeapPage(new HeapPageId(hf.getId(), p), HeapPage.createEmptyPageData());
+
+        LogFile log = Database.getLogFile();
+        Random rand = new Random(42);
+        for (int x = 0; x < XACTIONS; x++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int u = 0; u < UPDATES_PER_XACTION; u++) {
+                int p = rand.nextInt(PAGES);
+                HeapPage before = pages[p];
+                if (before.getNumEmptySlots() == 0)
+                    continue;
+                HeapPage after = new HeapPage(before.getId(), before.getPageData());
+                after.insertTuple(Utility.getHeapTuple(new int[] { x, u }));
+                log.logWrite(tid, before, after);
+                pages[p] = after;
+            }
+            log.logCommit(tid);
+        }
+
+        byte[][] expected = new byte[PAGES][];
+        for (int p = 0; p < PAGES; p++)
+            expected[p] = pages[p].getPageData();
+        return expected;
+    }
+
+    /**
+     * Restart, recover with the specified number of redo threads and check
+     * the pages on disk.
+     *
+     * @return the time recovery took, in nanoseconds
+     */
+    private long recover(int threads, byte[][] expected) throws Exception {
+        Database.reset();
+        HeapFile hf = Utility.openHeapFile(2, dataFile);
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        log.recover();
+        long elapsed = System.nanoTime() - start;
+
+        for (int p = 0; p < PAGES; p++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), p));
+            assertTrue("page " + p, Arrays.equals(expected[p], page.getPageData()));
+        }
+        return elapsed;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Parallel redo gives the same pages as serial redo. Prints the
+     * recovery times; only checks the results.
+     */
+    @Test public void parallelRedoBenchmark() throws Exception {
+        byte[][] expected = createSyntheticLog();
+        File savedLog = File.createTempFile("recovery", ".log");
+        File savedData = File.createTempFile("recovery", ".db");
+        savedLog.deleteOnExit();
+        Utility.deleteOnExit(savedData);
+        copy(logFile, savedLog);
+        copy(dataFile, savedData);
+
+        long serial = recover(1, expected);
+        long records = Database.getLogFile().getRedoneRecords();
+        assertTrue(records > XACTIONS);
+
+        copy(savedLog, logFile);
+        copy(savedData, dataFile);
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long parallel = recover(threads, expected);
+        assertEquals(records, Database.getLogFile().getRedoneRecords());
+
+        System.out.printf("recovery of %d update records on %d pages: serial redo %.1f ms, "
+                          + "%d redo threads %.1f ms%n",
+                          records, PAGES, serial / 1e6, threads, parallel / 1e6);
+        dataFile.delete();
+    }
+
+    /**
+     * Redo starts from the last checkpoint: changes of pages that were on
+     * disk when it was taken are not redone.
+     */
+    @Test public void checkpointLimitsRedo() throws Exception {
+        File file = new File("checkpointredo.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setForce(false);
+
+        insert(hf, 1);
+        assertEquals(1, Database.getBufferPool().writeOldestPages(10));
+        Database.getLogFile().logCheckpoint();
+        insert(hf, 2);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, Database.getLogFile().getRedoneRecords());
+        assertEquals(3, sum(hf));
+        file.delete();
+    }
+
+    /**
+     * A fuzzy checkpoint leaves committed pages dirty in the pool; they are
+     * in its dirty-page table, and recovered after a crash. Prints the
+     * pause of a fuzzy checkpoint and of writing the pages out as the old
+     * checkpoints did.
+     */
+    @Test public void fuzzyCheckpointKeepsPagesDirty() throws Exception {
+        File file = new File("fuzzycheckpoint.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.getBufferPool().setForce(false);
+        int tuples = 2000; // several pages
+        for (int i = 1; i <= tuples; i += 100)
+            insert(hf, i, 100);
+        long length = hf.getFile().length();
+
+        Database.getLogFile().logCheckpoint();
+        long fuzzyPause = Database.getLogFile().getCheckpointPauseNanos();
+        assertEquals(length, hf.getFile().length());
+        assertEquals(0, Database.getBufferPool().getTrickledPageCount());
+
+        long start = System.nanoTime();
+        Database.getBufferPool().flushAllPages();
+        long flushPause = System.nanoTime() - start;
+        System.out.printf("checkpoint pause with %d dirty pages: fuzzy %.3f ms, writing pages %.3f ms%n",
+                          hf.numPages(), fuzzyPause / 1e6, flushPause / 1e6);
+
+        // a crash before the pages were written
+        insert(hf, tuples + 1, 1);
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals((tuples + 1) * (tuples + 2) / 2, sum(hf));
+        file.delete();
+    }
+
+    /**
+     * The trickle writer writes committed pages, so the next checkpoint
+     * can truncate the log up to its end.
+     */
+    @Test public void trickleWriterLetsLogShrink() throws Exception {
+        File file = new File("trickle.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.getBufferPool();
+        bp.setForce(false);
+        for (int i = 1; i <= 1000; i += 50)
+            insert(hf, i, 50);
+        Database.getLogFile().logCheckpoint();
+        long length = logFile.length();
+
+        bp.startTrickleWriter(1, 2);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (bp.getTrickledPageCount() < hf.numPages() && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+        } finally {
+            bp.stopTrickleWriter();
+        }
+        assertEquals(hf.numPages(), bp.getTrickledPageCount());
+        Database.getLogFile().logCheckpoint();
+        assertTrue(logFile.length() < length);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(0, Database.getLogFile().getRedoneRecords());
+        assertEquals(1000 * 1001 / 2, sum(hf));
+        file.delete();
+    }
+
+    /**
+     * Truncation moves the records of a transaction that is active across
+     * it; the transaction can still be rolled back afterwards, and the
+     * truncated log still recovers.
+     */
+    @Test public void truncationKeepsActiveTransaction() throws Exception {
+        File file = new File("truncateactive.db");
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.getBufferPool();
+        bp.setForce(false);
+        for (int i = 1; i <= 1000; i += 50)
+            insert(hf, i, 50);
+        bp.writeOldestPages(hf.numPages());
+
+        Transaction active = new Transaction();
+        active.start();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(5000));
+        t.setField(1, new IntField(0));
+        bp.insertTuple(active.getId(), hf.getId(), t);
+        // stolen: its update record is logged and only rollback takes it off the disk
+        bp.flushPages(active.getId());
+        long length = logFile.length();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(logFile.length() < length);
+
+        active.transactionComplete(true);
+        assertEquals(1000 * 1001 / 2, sum(hf));
+
+        insert(hf, 1001);
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1001 * 1002 / 2, sum(hf));
+        file.delete();
+    }
+
+    private int sum(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int sum = 0;
+        while (scan.hasNext())
+            sum += ((IntField) scan.next().getField(0)).getValue();
+        scan.close();
+        t.commit();
+        return sum;
+    }
+
+    /** Insert count tuples with the values from first on in one transaction. */
+    private void insert(HeapFile hf, int first, int count) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple[] tups = new Tuple[count];
+        for (int i = 0; i < count; i++) {
+            tups[i] = new Tuple(Utility.getTupleDesc(2));
+            tups[i].setField(0, new IntField(first + i));
+            tups[i].setField(1, new IntField(0));
+        }
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Arrays.asList(tups)), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+    }
+
+    private void insert(HeapFile hf, int value) throws Exception {
+        insert(hf, value, 1);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
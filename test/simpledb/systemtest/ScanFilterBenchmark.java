@@ -0,0 +1,97 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import simpledb.*;
+
+/**
+ * Measures the throughput and allocation of a scan with a selective filter
+ * over a table of an int key and a string payload, read from disk on every
+ * scan. Prints the results; only checks the number of tuples found. Not part
+ * of the system tests, run it with
+ * <pre>java -cp ... simpledb.systemtest.ScanFilterBenchmark</pre>
+ */
+public class ScanFilterBenchmark {
+
+    private static final int ROWS = 20000;
+    private static final int KEYS = 100; // 1% of the rows pass the filter
+    private static final int RUNS = 5;
+
+    private static HeapFile createTable() throws Exception {
+        File text = File.createTempFile("scanfilter", ".txt");
+        File data = File.createTempFile("scanfilter", ".dat");
+        text.deleteOnExit();
+        Utility.deleteOnExit(data);
+        try (Writer w = new FileWriter(text)) {
+            for (int i = 0; i < ROWS; i++)
+                w.write((i % KEYS) + ",payload-" + i + "\n");
+        }
+        Type[] types = { Type.INT_TYPE, Type.STRING_TYPE };
+        HeapFileEncoder.convert(text, data, BufferPool.getPageSize(), 2, types);
+        HeapFile hf = new HeapFile(data, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        // decode pages on this thread only, so its allocations are all counted
+        hf.setReadAheadPages(0);
+        return hf;
+    }
+
+    /** @return the bytes this thread allocated so far, or -1 if the JVM does not tell */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @param touchAll whether the payload of every tuple is read, as if
+     *                 every tuple passed
+     * @return the number of tuples that passed the filter
+     */
+    private static int scan(HeapFile hf, boolean touchAll) throws Exception {
+        // drop the cached pages, so every scan reads and decodes them
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        OpIterator it = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(7)),
+                                   new SeqScan(tid, hf.getId(), ""));
+        if (touchAll)
+            it = new SeqScan(tid, hf.getId(), "");
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            t.getField(1);
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static void measure(HeapFile hf, boolean touchAll, int expected) throws Exception {
+        scan(hf, touchAll); // warm up
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int r = 0; r < RUNS; r++) {
+            int found = scan(hf, touchAll);
+            if (found != expected)
+                throw new IllegalStateException("found " + found + " tuples, expected " + expected);
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("scan of %d tuples, %d returned: %.1f ms/scan, %.0f tuples/s, %.0f bytes allocated/tuple%n",
+                          ROWS, expected, elapsed / 1e6 / RUNS, (double) ROWS * RUNS / (elapsed / 1e9),
+                          (double) bytes / ROWS / RUNS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        HeapFile hf = createTable();
+        measure(hf, false, ROWS / KEYS);
+        measure(hf, true, ROWS);
+    }
+}
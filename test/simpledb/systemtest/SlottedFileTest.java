@@ -0,0 +1,216 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Tests a table with a varchar column stored in a SlottedFile through the
+ * buffer pool and transactions.
+ */
+public class SlottedFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE }, new String[] { "id", "name" });
+
+    private static SlottedFile createEmptySlottedFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        Utility.deleteOnExit(f);
+        SlottedFile sf = new SlottedFile(f, TD);
+        Database.getCatalog().addTable(sf, SystemTestUtil.getUUID());
+        return sf;
+    }
+
+    private static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new VarcharField("name-" + id, Type.STRING_LEN));
+        return t;
+    }
+
+    private static void insert(TransactionId tid, DbFile f, int from, int to) throws Exception {
+        for (int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(), tuple(i));
+    }
+
+    /** @return the ids of the tuples in the table, checking their names */
+    private static HashSet<Integer> ids(DbFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HashSet<Integer> ids = new HashSet<Integer>();
+        DbFileIterator it = f.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            int id = ((IntField) tup.getField(0)).getValue();
+            assertEquals("name-" + id, ((StringField) tup.getField(1)).getValue());
+            assertTrue(ids.add(id));
+        }
+        it.close();
+        t.commit();
+        return ids;
+    }
+
+    private static HashSet<Integer> range(int from, int to) {
+        HashSet<Integer> ids = new HashSet<Integer>();
+        for (int i = from; i < to; i++)
+            ids.add(i);
+        return ids;
+    }
+
+    @Test public void insertScanDelete() throws Exception {
+        SlottedFile sf = createEmptySlottedFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 0, 2000);
+        t.commit();
+        assertEquals(range(0, 2000), ids(sf));
+
+        // a HeapFile with a string column needs over 5 times as many pages
+        int heapPerPage = BufferPool.getPageSize() * 8 / ((4 + Type.STRING_LEN + 4) * 8 + 1);
+        assertTrue(sf.numPages() + " pages", sf.numPages() * 5 < 2000 / heapPerPage);
+
+        // delete the even ids, the freed space is reused
+        t = new Transaction();
+        t.start();
+        ArrayList<Tuple> even = new ArrayList<Tuple>();
+        DbFileIterator it = sf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            if (((IntField) tup.getField(0)).getValue() % 2 == 0)
+                even.add(tup);
+        }
+        it.close();
+        Database.getBufferPool().deleteTuples(t.getId(), even);
+        t.commit();
+        HashSet<Integer> odd = new HashSet<Integer>();
+        for (int i = 1; i < 2000; i += 2)
+            odd.add(i);
+        assertEquals(odd, ids(sf));
+
+        int pages = sf.numPages();
+        t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 2000, 2500);
+        t.commit();
+        assertEquals(pages, sf.numPages());
+
+        // the pages are on disk
+        Database.getBufferPool().flushAllPages();
+        Database.reset();
+        SlottedFile reopened = new SlottedFile(sf.getFile(), TD);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        odd.addAll(range(2000, 2500));
+        assertEquals(odd, ids(reopened));
+    }
+
+    /**
+     * A page without room for a long tuple still takes a short one, it is
+     * not marked full in the free-space map.
+     */
+    @Test public void pageTooSmallForLongTupleTakesShortOne() throws Exception {
+        SlottedFile sf = createEmptySlottedFile();
+        Transaction t = new Transaction();
+        t.start();
+        char[] chars = new char[Type.STRING_LEN];
+        Arrays.fill(chars, 'x');
+        String name = new String(chars);
+        for (int i = 0; sf.numPages() < 2; i++) {
+            Tuple tup = new Tuple(TD);
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new VarcharField(name, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(t.getId(), sf.getId(), tup);
+        }
+        t.commit();
+
+        // the long tuple reads the first page from disk and finds no room on it
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(TD);
+        tup.setField(0, new IntField(-1));
+        tup.setField(1, new VarcharField(name, Type.STRING_LEN));
+        Database.getBufferPool().insertTuple(t.getId(), sf.getId(), tup);
+        assertEquals(1, tup.getRecordId().getPageId().getPageNumber());
+
+        tup = tuple(0);
+        Database.getBufferPool().insertTuple(t.getId(), sf.getId(), tup);
+        assertEquals(0, tup.getRecordId().getPageId().getPageNumber());
+        t.commit();
+    }
+
+    @Test public void abortRollsBack() throws Exception {
+        SlottedFile sf = createEmptySlottedFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 0, 100);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 100, 200);
+        t.transactionComplete(true);
+        assertEquals(range(0, 100), ids(sf));
+    }
+
+    /** Recovery redoes committed pages and undoes the uncommitted ones. */
+    @Test public void crashRecovery() throws Exception {
+        SlottedFile sf = createEmptySlottedFile();
+        Database.getBufferPool().setForce(false);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 0, 100);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        insert(t.getId(), sf, 100, 150);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        sf = new SlottedFile(sf.getFile(), TD);
+        Database.getCatalog().addTable(sf, SystemTestUtil.getUUID());
+        Database.getLogFile().recover();
+        assertEquals(range(0, 100), ids(sf));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void heapFileRejectsVarchar() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        Utility.deleteOnExit(f);
+        new HeapFile(f, TD);
+    }
+
+    @Test public void catalogCreatesSlottedFile() throws Exception {
+        File schema = File.createTempFile("slotted", ".schema");
+        schema.deleteOnExit();
+        try (Writer w = new FileWriter(schema)) {
+            w.write("names (id int, name varchar)\n");
+            w.write("ints (a int, b int) slotted\n");
+            w.write("strings (a int, s string)\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        Catalog c = Database.getCatalog();
+        assertTrue(c.getDatabaseFile(c.getTableId("names")) instanceof SlottedFile);
+        assertEquals(Type.VARCHAR_TYPE, c.getTupleDesc(c.getTableId("names")).getFieldType(1));
+        assertTrue(c.getDatabaseFile(c.getTableId("ints")) instanceof SlottedFile);
+        assertTrue(c.getDatabaseFile(c.getTableId("strings")) instanceof HeapFile);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedFileTest.class);
+    }
+}